@@ -3,8 +3,10 @@ package plc.project;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -21,8 +23,10 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
 
     public Analyzer(Scope parent) {
-        scope = new Scope(parent);
-        scope.defineFunction("print", "System.out.println", Arrays.asList(Environment.Type.ANY), Environment.Type.NIL, args -> Environment.NIL);
+        Scope library = Lists.library();
+        library.defineFunction("print", "System.out.println", Arrays.asList(Environment.Type.ANY), Environment.Type.NIL, args -> Environment.NIL);
+        library.defineFunction("flush", "System.out.flush", Arrays.asList(), Environment.Type.NIL, args -> Environment.NIL);
+        scope = new Scope(parent, library);
     }
 
     public Scope getScope() {
@@ -39,6 +43,28 @@ public final class Analyzer implements Ast.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Analyzes the globals and the signatures of the functions, leaving each
+     * function body to be analyzed by {@link #analyze(Ast.Function)} before it
+     * first runs. Every function is declared before any body is analyzed, so
+     * a body may call a function declared after it.
+     */
+    public void declare(Ast.Source ast) {
+        ast.getGlobals().forEach(this::visit);
+        ast.getFunctions().forEach(this::declare);
+        if (!scope.lookupFunction("main", 0).getReturnType().equals(Environment.Type.INTEGER)) {
+            throw new RuntimeException("Main method needs integer return");
+        }
+    }
+
+    /**
+     * Analyzes the body of a function declared by {@link #declare(Ast.Source)}.
+     * Bodies may be analyzed from several threads, one at a time.
+     */
+    public synchronized void analyze(Ast.Function ast) {
+        body(ast);
+    }
+
     @Override
     public Void visit(Ast.Global ast) {
         //Additionally, throws a RuntimeException if:
@@ -58,6 +84,12 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Function ast) {
+        declare(ast);
+        body(ast);
+        return null;
+    }
+
+    private void declare(Ast.Function ast) {
         List<Environment.Type> types = new ArrayList<>();
         for (int i = 0; i < ast.getParameterTypeNames().size(); i++){
             types.add(Environment.getType(ast.getParameterTypeNames().get(i)));
@@ -65,7 +97,6 @@ public final class Analyzer implements Ast.Visitor<Void> {
         Environment.Type returnType;
         if (ast.getReturnTypeName() != null){
             returnType = Environment.getType(ast.getReturnTypeName().get());
-            type = returnType;
         } else {
             returnType = Environment.Type.NIL;
         }
@@ -73,9 +104,20 @@ public final class Analyzer implements Ast.Visitor<Void> {
         scope.defineFunction(ast.getName(), ast.getName(), types, returnType, args->Environment.NIL);
         Environment.Function function = scope.lookupFunction(ast.getName(), ast.getParameterTypeNames().size());
         ast.setFunction(function);
+    }
+
+    private void body(Ast.Function ast) {
+        List<Environment.Type> types = ast.getFunction().getParameterTypes();
+        Environment.Type returnType = ast.getFunction().getReturnType();
+        type = returnType;
 
+        Ast.Function enclosing = this.function;
         try {
+            this.function = ast;
             scope = new Scope(scope);
+            for (int i = 0; i < ast.getParameters().size(); i++) {
+                scope.defineVariable(ast.getParameters().get(i), ast.getParameters().get(i), types.get(i), true, Environment.NIL);
+            }
             for (Ast.Statement stmt : ast.getStatements()){
                 if (stmt instanceof Ast.Statement.Return){
                     visit(stmt);
@@ -90,9 +132,9 @@ public final class Analyzer implements Ast.Visitor<Void> {
 //        }
         finally {
             scope = scope.getParent();
+            this.function = enclosing;
         }
 
-        return null;
 ////        throw new UnsupportedOperationException();  // TODO
 
     }
@@ -162,6 +204,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     public Void visit(Ast.Statement.Switch ast) {
         visit(ast.getCondition());
         List<Ast.Statement.Case> caseList = ast.getCases();
+        Set<Object> values = new HashSet<>();
         for (int i = 0; i < caseList.size(); i++) {
             if (caseList.get(i).getValue().isPresent()) {
                 //Check this RuntimeException
@@ -172,9 +215,16 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 if (!caseList.get(i).getValue().get().getType().equals(ast.getCondition().getType())) {
                     throw new RuntimeException("Condition and case dont match");
                 }
+                if (!(caseList.get(i).getValue().get() instanceof Ast.Expression.Literal)) {
+                    throw new RuntimeException("Case value is not a constant");
+                }
+                if (!values.add(((Ast.Expression.Literal) caseList.get(i).getValue().get()).getLiteral())) {
+                    throw new RuntimeException("Duplicate case value");
+                }
             }
             visit(caseList.get(i));
         }
+        ast.setCaseTable(Environment.CaseTable.of(caseList));
         return null;
     }
 
@@ -205,6 +255,11 @@ public final class Analyzer implements Ast.Visitor<Void> {
         //As hinted in Ast.Function, you will need to coordinate between these visits to accomplish this.
         visit(ast.getValue());
         requireAssignable(this.type, ast.getValue().getType());
+        if (ast.getValue() instanceof Ast.Expression.Function && function != null) {
+            Ast.Expression.Function call = (Ast.Expression.Function) ast.getValue();
+            ast.setTailCall(call.getName().equals(function.getName()) &&
+                    call.getArguments().size() == function.getParameters().size());
+        }
         return null;
     }
 
@@ -335,6 +390,14 @@ public final class Analyzer implements Ast.Visitor<Void> {
             visit(args.get(i));
             requireAssignable(params.get(i), args.get(i).getType());
         }
+        // list builtins take any list, a list having the type of its elements
+        Environment.Function function = ast.getFunction();
+        if (Lists.returnsElement(function)) {
+            ast.setFunction(new Environment.Function(function.getName(), function.getJvmName(),
+                    function.getParameterTypes(), args.get(0).getType(), function.getInvoker()));
+        } else if (Lists.storesElement(function)) {
+            requireAssignable(args.get(0).getType(), args.get(1).getType());
+        }
 
         return null;
     }
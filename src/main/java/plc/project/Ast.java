@@ -374,6 +374,7 @@ public abstract class Ast {
 
             private final Ast.Expression condition;
             private final List<Ast.Statement.Case> cases;
+            private Environment.CaseTable caseTable = null;
 
             public Switch(Ast.Expression condition, List<Ast.Statement.Case> cases) {
                 this.condition = condition;
@@ -386,6 +387,14 @@ public abstract class Ast {
 
             public List<Ast.Statement.Case> getCases() { return cases; }
 
+            public Environment.CaseTable getCaseTable() {
+                return caseTable;
+            }
+
+            public void setCaseTable(Environment.CaseTable caseTable) {
+                this.caseTable = caseTable;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Switch &&
@@ -476,6 +485,7 @@ public abstract class Ast {
         public static final class Return extends Statement {
 
             private final Ast.Expression value;
+            private boolean tailCall = false;
 
             public Return(Ast.Expression value) {
                 this.value = value;
@@ -485,16 +495,30 @@ public abstract class Ast {
                 return value;
             }
 
+            /**
+             * True if the value is a call to the enclosing function, as
+             * determined by the analyzer.
+             */
+            public boolean isTailCall() {
+                return tailCall;
+            }
+
+            public void setTailCall(boolean tailCall) {
+                this.tailCall = tailCall;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Return &&
-                        value.equals(((Return) obj).value);
+                        value.equals(((Return) obj).value) &&
+                        tailCall == ((Return) obj).tailCall;
             }
 
             @Override
             public String toString() {
                 return "Ast.Statement.Return{" +
                         "value=" + value +
+                        ", tailCall=" + tailCall +
                         '}';
             }
 
@@ -0,0 +1,140 @@
+package plc.project;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many executions of prepared programs concurrently. Each execution runs
+ * on its own virtual thread when the JVM supports them (Java 21 and later),
+ * and on a fixed pool of platform threads otherwise; either way at most
+ * {@code concurrency} executions run at once.
+ *
+ * Every execution prints to its own capture, returned with its result, and is
+ * metered so that it is aborted when its timeout passes or its future is
+ * cancelled.
+ */
+public final class BatchExecutor implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+
+    public BatchExecutor(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be positive.");
+        }
+        ExecutorService executor = virtualThreadExecutor();
+        this.virtual = executor != null;
+        this.executor = virtual ? executor : platformThreadExecutor(concurrency);
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, looked up
+     * reflectively so the interpreter still runs on older JVMs.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService platformThreadExecutor(int concurrency) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "plc-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns true if executions run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Submits an execution of the program, see
+     * {@link PreparedProgram#execute(Map)}. It is aborted once it has run for
+     * longer than the timeout, or never if the timeout is null.
+     */
+    public Future<Result> submit(PreparedProgram program, Map<String, ?> inputs, Duration timeout) {
+        long submitted = System.nanoTime();
+        return executor.submit(() -> {
+            permits.acquire();
+            try {
+                PlcOutput.Capture output = PlcOutput.capture();
+                Environment.PlcObject value = program.execute(inputs, output, new Meter(Long.MAX_VALUE, timeout));
+                return new Result(value, output.getText(), System.nanoTime() - submitted);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Stops accepting executions and waits for the submitted ones to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.DAYS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static final class Result {
+
+        private final Environment.PlcObject value;
+        private final String output;
+        private final long latency;
+
+        private Result(Environment.PlcObject value, String output, long latency) {
+            this.value = value;
+            this.output = output;
+            this.latency = latency;
+        }
+
+        public Environment.PlcObject getValue() {
+            return value;
+        }
+
+        /**
+         * Returns everything the execution printed.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns the nanoseconds from submission to completion, including any
+         * time spent waiting for a free slot.
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+    }
+
+}
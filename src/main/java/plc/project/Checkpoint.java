@@ -0,0 +1,239 @@
+package plc.project;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the values of initialized globals to a compact binary file, so that
+ * a later process can skip their initializers. The values read back are used
+ * as the inputs of {@link PreparedProgram#execute(Map)}, which then goes
+ * straight to {@code main}. Each execution copies the lists it is given, so
+ * the values read once can be reused for any number of executions.
+ *
+ * Typed lists are written as their packed primitive storage and read back in
+ * bulk. A list referenced by several globals (or by itself) is written once,
+ * so aliasing survives a restore. Lists mapped onto files are not part of a
+ * program's state and cannot be checkpointed.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x504C4353;
+    private static final int VERSION = 1;
+
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INTEGER = 3;
+    private static final int BIG_INTEGER = 4;
+    private static final int DECIMAL = 5;
+    private static final int CHARACTER = 6;
+    private static final int STRING = 7;
+    private static final int LIST = 8;
+    private static final int TYPED_LIST = 9;
+    private static final int REFERENCE = 10;
+
+    private static final Environment.Type[] ELEMENT_TYPES = {
+            Environment.Type.INTEGER, Environment.Type.DECIMAL, Environment.Type.CHARACTER, Environment.Type.BOOLEAN
+    };
+
+    private Checkpoint() {}
+
+    /**
+     * Writes the values of the named variables, looked up in the scope.
+     */
+    public static void write(Path path, Scope scope, Iterable<String> names) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            List<String> written = new ArrayList<>();
+            names.forEach(written::add);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(written.size());
+            Map<Object, Integer> lists = new IdentityHashMap<>();
+            for (String name : written) {
+                writeString(out, name);
+                writeValue(out, scope.lookupVariable(name).getValue().getRawValue(), lists);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write the checkpoint " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the values written by {@link #write}, by variable name in the
+     * order they were written.
+     */
+    public static Map<String, Environment.PlcObject> read(Path path) {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the checkpoint " + path + ": " + e.getMessage(), e);
+        }
+        if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new RuntimeException("The file " + path + " is not a checkpoint.");
+        }
+        try {
+            int count = in.getInt();
+            Map<String, Environment.PlcObject> values = new LinkedHashMap<>();
+            List<TypedList> lists = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                Object value = readValue(in, lists);
+                values.put(name, value == Environment.NIL.getValue() ? Environment.NIL : Environment.create(value));
+            }
+            return values;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw new RuntimeException("The checkpoint " + path + " is truncated or corrupt.", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, Map<Object, Integer> lists) throws IOException {
+        if (value == Environment.NIL.getValue()) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            out.writeByte(INTEGER);
+            out.writeLong(((BigInteger) value).longValue());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            out.writeInt(((BigDecimal) value).scale());
+            writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+        } else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value instanceof CharSequence) {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        } else if (value instanceof MappedList) {
+            throw new RuntimeException("Lists mapped onto files cannot be checkpointed.");
+        } else if (value instanceof List) {
+            Integer id = lists.get(value);
+            if (id != null) {
+                out.writeByte(REFERENCE);
+                out.writeInt(id);
+                return;
+            }
+            lists.put(value, lists.size());
+            List<?> list = (List<?>) value;
+            int elementType = value instanceof TypedList ? elementType(((TypedList) value).getElementType()) : -1;
+            if (elementType >= 0) {
+                out.writeByte(TYPED_LIST);
+                out.writeByte(elementType);
+                out.writeInt(list.size());
+                ((TypedList) value).writeElements(out);
+            } else {
+                out.writeByte(LIST);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(out, element, lists);
+                }
+            }
+        } else {
+            throw new RuntimeException("Values of type " + value.getClass().getName() + " cannot be checkpointed.");
+        }
+    }
+
+    private static int elementType(Environment.Type type) {
+        for (int i = 0; i < ELEMENT_TYPES.length; i++) {
+            if (ELEMENT_TYPES[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Object readValue(ByteBuffer in, List<TypedList> lists) {
+        int tag = in.get();
+        switch (tag) {
+            case NIL:
+                return Environment.NIL.getValue();
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case INTEGER:
+                return BigInteger.valueOf(in.getLong());
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case DECIMAL: {
+                int scale = in.getInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            }
+            case CHARACTER:
+                return in.getChar();
+            case STRING:
+                return readString(in);
+            case TYPED_LIST: {
+                Environment.Type type = ELEMENT_TYPES[in.get()];
+                int width = type == Environment.Type.CHARACTER ? 2 : type == Environment.Type.BOOLEAN ? 1 : 8;
+                TypedList list = TypedList.allocate(type, readLength(in, width));
+                lists.add(list);
+                list.readElements(in);
+                return list;
+            }
+            case LIST: {
+                // every element takes at least its tag byte
+                TypedList list = TypedList.allocate(Environment.Type.ANY, readLength(in, 1));
+                lists.add(list);
+                for (int i = 0; i < list.size(); i++) {
+                    list.store(i, readValue(in, lists));
+                }
+                return list;
+            }
+            case REFERENCE:
+                return lists.get(in.getInt());
+            default:
+                throw new IndexOutOfBoundsException("Unknown tag " + tag + ".");
+        }
+    }
+
+    /**
+     * Reads the length of something stored in elements of {@code width}
+     * bytes, rejecting lengths the rest of the file cannot hold before
+     * anything is allocated for them.
+     */
+    private static int readLength(ByteBuffer in, int width) {
+        int length = in.getInt();
+        if (length < 0 || (long) length * width > in.remaining()) {
+            throw new IndexOutOfBoundsException("Invalid length " + length + ".");
+        }
+        return length;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[readLength(in, 1)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(ByteBuffer in) {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,651 @@
+package plc.project;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which globals code reads and writes, following calls to the
+ * functions of the source. Unlike the {@link Analyzer} this needs no types,
+ * so it also applies to programs which were only parsed.
+ *
+ * Names are resolved lexically, so parameters and locals shadow globals.
+ * Code has external effects if it calls a builtin with effects (such as
+ * {@code print} or {@code fill}; see {@link #PURE_BUILTINS} for the others),
+ * or stores into a list it did not create itself, since that list may be
+ * shared with a global or the caller.
+ */
+public final class Effects {
+
+    private static final Set<String> PURE_BUILTINS = Set.of("length/1", "slice/3", "compare/2",
+            "sum/1", "min/1", "max/1", "indexOf/2", "copy/1");
+
+    private final Set<String> globals = new HashSet<>();
+    private final Map<String, Ast.Function> functions = new HashMap<>();
+    private final Map<Ast.Function, Walker> bodies = new HashMap<>();
+    private final Scope scope;
+
+    public Effects(Ast.Source source) {
+        this(source, null);
+    }
+
+    /**
+     * Only trusts a builtin to be pure if it resolves to the library of the
+     * scope, not to a function of the same name defined by the embedder.
+     */
+    public Effects(Ast.Source source, Scope scope) {
+        this.scope = scope;
+        source.getGlobals().forEach(global -> globals.add(global.getName()));
+        source.getFunctions().forEach(function -> functions.put(function.getName() + "/" + function.getParameters().size(), function));
+    }
+
+    /**
+     * Summarizes an expression evaluated in the global scope, such as the
+     * initializer of a global.
+     */
+    public Summary of(Ast.Expression expression) {
+        Walker walker = new Walker(Collections.emptySet());
+        walker.visit(expression);
+        return summarize(walker);
+    }
+
+    /**
+     * Summarizes a call of the function.
+     */
+    public Summary of(Ast.Function function) {
+        return summarize(body(function));
+    }
+
+    private Walker body(Ast.Function function) {
+        Walker walker = bodies.get(function);
+        if (walker == null) {
+            walker = new Walker(reassigned(function.getStatements(), new HashSet<>()));
+            walker.scopes.push(new HashMap<>());
+            for (String parameter : function.getParameters()) {
+                walker.scopes.peek().put(parameter, false);
+            }
+            walker.block(function.getStatements());
+            bodies.put(function, walker);
+        }
+        return walker;
+    }
+
+    private Summary summarize(Walker walker) {
+        return summarize(walker.reads, walker.writes, walker.external, walker.calls);
+    }
+
+    private Summary summarize(Set<String> reads, Set<String> writes, boolean external, Set<Ast.Function> calls) {
+        reads = new LinkedHashSet<>(reads);
+        writes = new LinkedHashSet<>(writes);
+        Set<Ast.Function> visited = new LinkedHashSet<>();
+        Deque<Ast.Function> pending = new ArrayDeque<>(calls);
+        while (!pending.isEmpty()) {
+            Ast.Function function = pending.pop();
+            if (visited.add(function)) {
+                Walker body = body(function);
+                reads.addAll(body.reads);
+                writes.addAll(body.writes);
+                external |= body.external;
+                pending.addAll(body.calls);
+            }
+        }
+        return new Summary(reads, writes, external, visited);
+    }
+
+    /**
+     * Recognizes a counted loop whose iterations are independent, returning
+     * null for any other loop. The loop must have the form
+     * {@code WHILE i < n DO ... i = i + 1; END} (or {@code i != n}), where
+     * the body only assigns its own locals and elements {@code out[i]} of
+     * lists it does not otherwise read, only calls pure functions, and
+     * neither the body nor {@code n} reassigns {@code i}.
+     */
+    public Loop loop(Ast.Statement.While ast) {
+        if (!(ast.getCondition() instanceof Ast.Expression.Binary) || ast.getStatements().isEmpty()) {
+            return null;
+        }
+        Ast.Expression.Binary condition = (Ast.Expression.Binary) ast.getCondition();
+        if (!condition.getOperator().equals("<") && !condition.getOperator().equals("!=")
+                || !(condition.getLeft() instanceof Ast.Expression.Access)
+                || ((Ast.Expression.Access) condition.getLeft()).getOffset().isPresent()) {
+            return null;
+        }
+        String index = ((Ast.Expression.Access) condition.getLeft()).getName();
+        List<Ast.Statement> statements = ast.getStatements();
+        if (!isIncrement(statements.get(statements.size() - 1), index)) {
+            return null;
+        }
+        List<Ast.Statement> body = statements.subList(0, statements.size() - 1);
+        LoopWalker walker = new LoopWalker(index);
+        walker.bound = true;
+        walker.visit(condition.getRight());
+        walker.bound = false;
+        walker.block(body);
+        if (!walker.independent) {
+            return null;
+        }
+        Summary calls = summarize(Collections.emptySet(), Collections.emptySet(), false, walker.calls);
+        if (!calls.isPure() || calls.getReads().contains(index) || !Collections.disjoint(calls.getReads(), walker.written)
+                || !Collections.disjoint(walker.plain, walker.written)) {
+            return null;
+        }
+        Set<String> shared = new LinkedHashSet<>(walker.outer);
+        shared.removeAll(walker.written);
+        return new Loop(index, condition.getOperator(), condition.getRight(), body,
+                walker.written, shared, calls.getReads(), calls.getFunctions());
+    }
+
+    private boolean isPure(String name, int arity) {
+        return PURE_BUILTINS.contains(name + "/" + arity) && (scope == null || scope.isLibraryFunction(name, arity));
+    }
+
+    private static boolean isIncrement(Ast.Statement statement, String index) {
+        if (!(statement instanceof Ast.Statement.Assignment)) {
+            return false;
+        }
+        Ast.Statement.Assignment assignment = (Ast.Statement.Assignment) statement;
+        if (!isAccess(assignment.getReceiver(), index) || !(assignment.getValue() instanceof Ast.Expression.Binary)) {
+            return false;
+        }
+        Ast.Expression.Binary value = (Ast.Expression.Binary) assignment.getValue();
+        return value.getOperator().equals("+") && isAccess(value.getLeft(), index)
+                && value.getRight() instanceof Ast.Expression.Literal
+                && BigInteger.ONE.equals(((Ast.Expression.Literal) value.getRight()).getLiteral());
+    }
+
+    private static boolean isAccess(Ast.Expression expression, String name) {
+        return expression instanceof Ast.Expression.Access && !((Ast.Expression.Access) expression).getOffset().isPresent()
+                && ((Ast.Expression.Access) expression).getName().equals(name);
+    }
+
+    /**
+     * Collects the names assigned without an offset anywhere in the
+     * statements. A local list is only known to be fresh if it is never
+     * reassigned.
+     */
+    private static Set<String> reassigned(List<Ast.Statement> statements, Set<String> names) {
+        for (Ast.Statement statement : statements) {
+            if (statement instanceof Ast.Statement.Assignment) {
+                Ast.Expression receiver = ((Ast.Statement.Assignment) statement).getReceiver();
+                if (receiver instanceof Ast.Expression.Access && !((Ast.Expression.Access) receiver).getOffset().isPresent()) {
+                    names.add(((Ast.Expression.Access) receiver).getName());
+                }
+            } else if (statement instanceof Ast.Statement.If) {
+                reassigned(((Ast.Statement.If) statement).getThenStatements(), names);
+                reassigned(((Ast.Statement.If) statement).getElseStatements(), names);
+            } else if (statement instanceof Ast.Statement.Switch) {
+                for (Ast.Statement.Case c : ((Ast.Statement.Switch) statement).getCases()) {
+                    reassigned(c.getStatements(), names);
+                }
+            } else if (statement instanceof Ast.Statement.While) {
+                reassigned(((Ast.Statement.While) statement).getStatements(), names);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The globals some code reads and writes.
+     */
+    public static final class Summary {
+
+        private final Set<String> reads;
+        private final Set<String> writes;
+        private final boolean external;
+        private final Set<Ast.Function> functions;
+
+        private Summary(Set<String> reads, Set<String> writes, boolean external, Set<Ast.Function> functions) {
+            this.reads = Collections.unmodifiableSet(reads);
+            this.writes = Collections.unmodifiableSet(writes);
+            this.external = external;
+            this.functions = Collections.unmodifiableSet(functions);
+        }
+
+        public Set<String> getReads() {
+            return reads;
+        }
+
+        public Set<String> getWrites() {
+            return writes;
+        }
+
+        public boolean isExternal() {
+            return external;
+        }
+
+        /**
+         * Returns the functions of the source the code calls, directly or
+         * indirectly.
+         */
+        public Set<Ast.Function> getFunctions() {
+            return functions;
+        }
+
+        /**
+         * Returns true if the code only reads globals, so running it at
+         * another time or on another thread has no visible effect.
+         */
+        public boolean isPure() {
+            return writes.isEmpty() && !external;
+        }
+
+    }
+
+    /**
+     * A counted loop recognized by {@link #loop}. Iteration {@code k} runs
+     * the body with the index set to {@code k}.
+     */
+    public static final class Loop {
+
+        private final String index;
+        private final String operator;
+        private final Ast.Expression bound;
+        private final List<Ast.Statement> body;
+        private final Set<String> written;
+        private final Set<String> shared;
+        private final Set<String> globals;
+        private final Set<Ast.Function> functions;
+
+        private Loop(String index, String operator, Ast.Expression bound, List<Ast.Statement> body,
+                Set<String> written, Set<String> shared, Set<String> globals, Set<Ast.Function> functions) {
+            this.index = index;
+            this.operator = operator;
+            this.bound = bound;
+            this.body = body;
+            this.written = Collections.unmodifiableSet(written);
+            this.shared = Collections.unmodifiableSet(shared);
+            this.globals = globals;
+            this.functions = functions;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the operator of the condition, {@code <} or {@code !=}.
+         */
+        public String getOperator() {
+            return operator;
+        }
+
+        public Ast.Expression getBound() {
+            return bound;
+        }
+
+        /**
+         * Returns the statements of the body, without the increment.
+         */
+        public List<Ast.Statement> getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the variables holding the lists the body stores into.
+         */
+        public Set<String> getWritten() {
+            return written;
+        }
+
+        /**
+         * Returns the other variables of enclosing scopes the loop reads. If
+         * one holds a list that is also written, the iterations are not
+         * independent after all.
+         */
+        public Set<String> getShared() {
+            return shared;
+        }
+
+        /**
+         * Returns the globals read by the functions the loop calls.
+         */
+        public Set<String> getGlobals() {
+            return globals;
+        }
+
+        public Set<Ast.Function> getFunctions() {
+            return functions;
+        }
+
+    }
+
+    /**
+     * Walks one function body or expression without following calls. Each
+     * scope maps a local to whether it holds a list the code created.
+     */
+    private final class Walker implements Ast.Visitor<Void> {
+
+        private final Set<String> reassigned;
+        private final Deque<Map<String, Boolean>> scopes = new ArrayDeque<>();
+        private final Set<String> reads = new LinkedHashSet<>();
+        private final Set<String> writes = new LinkedHashSet<>();
+        private final Set<Ast.Function> calls = new LinkedHashSet<>();
+        private boolean external = false;
+
+        private Walker(Set<String> reassigned) {
+            this.reassigned = reassigned;
+        }
+
+        private Boolean local(String name) {
+            for (Map<String, Boolean> scope : scopes) {
+                Boolean fresh = scope.get(name);
+                if (fresh != null) {
+                    return fresh;
+                }
+            }
+            return null;
+        }
+
+        private void block(List<Ast.Statement> statements) {
+            scopes.push(new HashMap<>());
+            statements.forEach(this::visit);
+            scopes.pop();
+        }
+
+        @Override
+        public Void visit(Ast.Source ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Global ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Function ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Expression ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Declaration ast) {
+            ast.getValue().ifPresent(this::visit);
+            boolean fresh = ast.getValue().isPresent() && ast.getValue().get() instanceof Ast.Expression.PlcList
+                    && !reassigned.contains(ast.getName());
+            scopes.peek().put(ast.getName(), fresh);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Assignment ast) {
+            visit(ast.getValue());
+            if (!(ast.getReceiver() instanceof Ast.Expression.Access)) {
+                external = true;
+                return null;
+            }
+            Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+            receiver.getOffset().ifPresent(this::visit);
+            Boolean fresh = local(receiver.getName());
+            if (fresh == null && globals.contains(receiver.getName())) {
+                writes.add(receiver.getName());
+            } else if (fresh == null || receiver.getOffset().isPresent() && !fresh) {
+                external = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.If ast) {
+            visit(ast.getCondition());
+            block(ast.getThenStatements());
+            block(ast.getElseStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Switch ast) {
+            visit(ast.getCondition());
+            ast.getCases().forEach(this::visit);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Case ast) {
+            ast.getValue().ifPresent(this::visit);
+            block(ast.getStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.While ast) {
+            visit(ast.getCondition());
+            block(ast.getStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Return ast) {
+            return visit(ast.getValue());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Literal ast) {
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Group ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Binary ast) {
+            visit(ast.getLeft());
+            return visit(ast.getRight());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Access ast) {
+            ast.getOffset().ifPresent(this::visit);
+            if (local(ast.getName()) == null && globals.contains(ast.getName())) {
+                reads.add(ast.getName());
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Function ast) {
+            ast.getArguments().forEach(this::visit);
+            String key = ast.getName() + "/" + ast.getArguments().size();
+            Ast.Function function = functions.get(key);
+            if (function != null) {
+                calls.add(function);
+            } else if (!isPure(ast.getName(), ast.getArguments().size())) {
+                external = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.PlcList ast) {
+            ast.getValues().forEach(this::visit);
+            return null;
+        }
+
+    }
+
+    /**
+     * Checks the body of a counted loop, collecting the variables of
+     * enclosing scopes it reads and writes.
+     */
+    private final class LoopWalker implements Ast.Visitor<Void> {
+
+        private final String index;
+        private final Deque<Set<String>> scopes = new ArrayDeque<>();
+        private final Set<String> outer = new LinkedHashSet<>();
+        private final Set<String> plain = new HashSet<>();
+        private final Set<String> written = new LinkedHashSet<>();
+        private final Set<Ast.Function> calls = new LinkedHashSet<>();
+        private boolean bound = false;
+        private boolean independent = true;
+
+        private LoopWalker(String index) {
+            this.index = index;
+        }
+
+        private boolean local(String name) {
+            for (Set<String> scope : scopes) {
+                if (scope.contains(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isIndex(Ast.Expression expression) {
+            return isAccess(expression, index) && !local(index);
+        }
+
+        private void block(List<Ast.Statement> statements) {
+            scopes.push(new HashSet<>());
+            statements.forEach(this::visit);
+            scopes.pop();
+        }
+
+        @Override
+        public Void visit(Ast.Source ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Global ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Function ast) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Expression ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Declaration ast) {
+            ast.getValue().ifPresent(this::visit);
+            scopes.peek().add(ast.getName());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Assignment ast) {
+            visit(ast.getValue());
+            if (!(ast.getReceiver() instanceof Ast.Expression.Access)) {
+                independent = false;
+                return null;
+            }
+            Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+            if (local(receiver.getName())) {
+                independent &= !receiver.getOffset().isPresent();
+            } else if (receiver.getOffset().isPresent() && isIndex(receiver.getOffset().get())
+                    && !receiver.getName().equals(index)) {
+                written.add(receiver.getName());
+            } else {
+                independent = false;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.If ast) {
+            visit(ast.getCondition());
+            block(ast.getThenStatements());
+            block(ast.getElseStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Switch ast) {
+            visit(ast.getCondition());
+            ast.getCases().forEach(this::visit);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Case ast) {
+            ast.getValue().ifPresent(this::visit);
+            block(ast.getStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.While ast) {
+            visit(ast.getCondition());
+            block(ast.getStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Return ast) {
+            independent = false;
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Literal ast) {
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Group ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Binary ast) {
+            visit(ast.getLeft());
+            return visit(ast.getRight());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Access ast) {
+            ast.getOffset().ifPresent(this::visit);
+            if (local(ast.getName())) {
+                return null;
+            } else if (ast.getName().equals(index)) {
+                independent &= !bound && !ast.getOffset().isPresent();
+            } else {
+                outer.add(ast.getName());
+                if (!ast.getOffset().isPresent() || !isIndex(ast.getOffset().get())) {
+                    plain.add(ast.getName());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Function ast) {
+            ast.getArguments().forEach(this::visit);
+            String key = ast.getName() + "/" + ast.getArguments().size();
+            Ast.Function function = functions.get(key);
+            if (function != null) {
+                calls.add(function);
+            } else if (!isPure(ast.getName(), ast.getArguments().size())) {
+                independent = false;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.PlcList ast) {
+            ast.getValues().forEach(this::visit);
+            return null;
+        }
+
+    }
+
+}
@@ -1,18 +1,73 @@
 package plc.project;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public final class Environment {
 
+    /**
+     * Creates an object for a value. Booleans, small integers and ASCII
+     * characters are canonical and shared, so evaluating comparisons and
+     * counters does not allocate.
+     */
     public static PlcObject create(Object value) {
-        return new PlcObject(new Scope(null), value);
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 11) {
+            return INTEGERS[((BigInteger) value).intValue() + INTEGERS.length / 2];
+        } else if (value instanceof Character && (Character) value < CHARACTERS.length) {
+            return CHARACTERS[(Character) value];
+        }
+        return new PlcObject(typeOf(value), null, value);
     }
 
-    public static final PlcObject NIL = new PlcObject(Type.NIL, new Scope(null), new Object() {
+    /**
+     * Returns true if {@link #create} returns a shared canonical object for
+     * the value, so creating it allocates nothing.
+     */
+    static boolean isCanonical(Object value) {
+        return value instanceof Boolean
+                || value instanceof BigInteger && ((BigInteger) value).bitLength() < 11
+                || value instanceof Character && (Character) value < CHARACTERS.length;
+    }
+
+    /**
+     * Creates an integer object from a long, without allocating for values in
+     * the canonical range.
+     */
+    public static PlcObject integer(long value) {
+        if (value >= -INTEGERS.length / 2 && value < INTEGERS.length / 2) {
+            return INTEGERS[(int) value + INTEGERS.length / 2];
+        }
+        return new PlcObject(Type.INTEGER, null, BigInteger.valueOf(value));
+    }
+
+    /**
+     * Returns the registered type of a runtime value, or {@link Type#ANY} for
+     * values (such as lists) without a more specific type.
+     */
+    public static Type typeOf(Object value) {
+        if (value instanceof BigInteger) {
+            return Type.INTEGER;
+        } else if (value instanceof BigDecimal) {
+            return Type.DECIMAL;
+        } else if (value instanceof Boolean) {
+            return Type.BOOLEAN;
+        } else if (value instanceof Character) {
+            return Type.CHARACTER;
+        } else if (value instanceof String || value instanceof Rope || value instanceof StringSlice) {
+            return Type.STRING;
+        }
+        return Type.ANY;
+    }
+
+    public static final PlcObject NIL = new PlcObject(Type.NIL, null, new Object() {
 
         @Override
         public String toString() {
@@ -21,7 +76,27 @@ public final class Environment {
 
     });
 
+    public static final PlcObject TRUE = new PlcObject(Type.BOOLEAN, null, Boolean.TRUE);
+    public static final PlcObject FALSE = new PlcObject(Type.BOOLEAN, null, Boolean.FALSE);
+
+    private static final PlcObject[] INTEGERS = new PlcObject[2048];
+    private static final PlcObject[] CHARACTERS = new PlcObject[128];
+
+    static {
+        for (int i = 0; i < INTEGERS.length; i++) {
+            INTEGERS[i] = new PlcObject(Type.INTEGER, null, BigInteger.valueOf(i - INTEGERS.length / 2));
+        }
+        for (char c = 0; c < CHARACTERS.length; c++) {
+            CHARACTERS[c] = new PlcObject(Type.CHARACTER, null, c);
+        }
+    }
+
+    /**
+     * The builtin types. The registry and the types' scopes are frozen once
+     * the class is initialized, so they are safely shared by every thread.
+     */
     private static final Map<String, Type> TYPES = new HashMap<>();
+    private static boolean frozen = false;
 
     public static Type getType(String name) {
         if (!TYPES.containsKey(name)) {
@@ -31,7 +106,9 @@ public final class Environment {
     }
 
     public static void registerType(Type type) {
-        if (TYPES.containsKey(type.getName())) {
+        if (frozen) {
+            throw new IllegalStateException("The type registry is frozen, " + type.getName() + " cannot be registered.");
+        } else if (TYPES.containsKey(type.getName())) {
             throw new IllegalArgumentException("Duplicate registration of type " + type.getName() + ".");
         }
         TYPES.put(type.getName(), type);
@@ -96,7 +173,7 @@ public final class Environment {
         private final Object value;
 
         public PlcObject(Scope scope, Object value) {
-            this(new Type("Unknown", "Unknown", scope), scope, value);
+            this(typeOf(value), scope, value);
         }
 
         public PlcObject(Type type, Scope scope, Object value) {
@@ -109,7 +186,19 @@ public final class Environment {
             return type;
         }
 
+        /**
+         * Returns the value. Strings built by concatenation or slicing are
+         * flattened from their {@link Rope} or {@link StringSlice} the first
+         * time they are read.
+         */
         public Object getValue() {
+            return value instanceof Rope || value instanceof StringSlice ? value.toString() : value;
+        }
+
+        /**
+         * Returns the value without flattening ropes and slices.
+         */
+        Object getRawValue() {
             return value;
         }
 
@@ -131,6 +220,7 @@ public final class Environment {
         private final boolean mutable;
         private final Type type;
         private PlcObject value;
+        private Supplier<PlcObject> initializer = null;
 
         public Variable(String name, boolean mutable, PlcObject value) {
             this(name, name, Type.ANY, mutable, value);
@@ -160,14 +250,34 @@ public final class Environment {
             return mutable;
         }
 
+        /**
+         * Returns the value, running the initializer first if one is pending.
+         */
         public PlcObject getValue() {
+            if (initializer != null) {
+                PlcObject initial = initializer.get();
+                if (initializer != null) {
+                    value = initial;
+                    initializer = null;
+                }
+            }
             return value;
         }
 
         public void setValue(PlcObject value) {
+            this.initializer = null;
             this.value = value;
         }
 
+        /**
+         * Defers computing the value until it is first read. Assigning the
+         * variable before then discards the initializer, and an initializer
+         * that throws is run again by the next read.
+         */
+        public void setInitializer(Supplier<PlcObject> initializer) {
+            this.initializer = initializer;
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Variable &&
@@ -190,13 +300,75 @@ public final class Environment {
 
     }
 
+    /**
+     * The calling convention used by {@link Function}. Only the array form is
+     * required; the fixed-arity forms exist so that implementations which can
+     * bind arguments directly (such as interpreted functions) avoid building an
+     * argument array or list on every call.
+     */
+    public static abstract class Invoker {
+
+        private static final PlcObject[] NO_ARGUMENTS = new PlcObject[0];
+
+        public abstract PlcObject invoke(PlcObject[] arguments);
+
+        public PlcObject invoke0() {
+            return invoke(NO_ARGUMENTS);
+        }
+
+        public PlcObject invoke1(PlcObject argument0) {
+            return invoke(new PlcObject[] {argument0});
+        }
+
+        public PlcObject invoke2(PlcObject argument0, PlcObject argument1) {
+            return invoke(new PlcObject[] {argument0, argument1});
+        }
+
+        public PlcObject invoke3(PlcObject argument0, PlcObject argument1, PlcObject argument2) {
+            return invoke(new PlcObject[] {argument0, argument1, argument2});
+        }
+
+        public PlcObject invoke4(PlcObject argument0, PlcObject argument1, PlcObject argument2, PlcObject argument3) {
+            return invoke(new PlcObject[] {argument0, argument1, argument2, argument3});
+        }
+
+        /**
+         * Adapts a list based function (as used by builtins and tests) to the
+         * invoker convention.
+         */
+        public static Invoker of(java.util.function.Function<List<PlcObject>, PlcObject> function) {
+            return new ListInvoker(function);
+        }
+
+    }
+
+    private static final class ListInvoker extends Invoker {
+
+        private final java.util.function.Function<List<PlcObject>, PlcObject> function;
+
+        private ListInvoker(java.util.function.Function<List<PlcObject>, PlcObject> function) {
+            this.function = function;
+        }
+
+        @Override
+        public PlcObject invoke(PlcObject[] arguments) {
+            return function.apply(Arrays.asList(arguments));
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+
+    }
+
     public static final class Function {
 
         private final String name;
         private final String jvmName;
         private final List<Type> parameterTypes;
         private final Type returnType;
-        private final java.util.function.Function<List<PlcObject>, PlcObject> function;
+        private final Invoker invoker;
 
         public Function(String name, int arity, java.util.function.Function<List<PlcObject>, PlcObject> function) {
             this(name, name, new ArrayList<>(), Type.ANY, function);
@@ -206,11 +378,15 @@ public final class Environment {
         }
 
         public Function(String name, String jvmName, List<Type> parameterTypes, Type returnType, java.util.function.Function<List<PlcObject>, PlcObject> function) {
+            this(name, jvmName, parameterTypes, returnType, Invoker.of(function));
+        }
+
+        public Function(String name, String jvmName, List<Type> parameterTypes, Type returnType, Invoker invoker) {
             this.name = name;
             this.jvmName = jvmName;
             this.parameterTypes = parameterTypes;
             this.returnType = returnType;
-            this.function = function;
+            this.invoker = invoker;
         }
 
         public String getName() {
@@ -234,8 +410,39 @@ public final class Environment {
             return parameterTypes.size();
         }
 
+        public Invoker getInvoker() {
+            return invoker;
+        }
+
         public PlcObject invoke(List<PlcObject> arguments) {
-            return function.apply(arguments);
+            if (invoker instanceof ListInvoker) {
+                return ((ListInvoker) invoker).function.apply(arguments);
+            }
+            return invoker.invoke(arguments.toArray(new PlcObject[0]));
+        }
+
+        public PlcObject invoke(PlcObject[] arguments) {
+            return invoker.invoke(arguments);
+        }
+
+        public PlcObject invoke0() {
+            return invoker.invoke0();
+        }
+
+        public PlcObject invoke1(PlcObject argument0) {
+            return invoker.invoke1(argument0);
+        }
+
+        public PlcObject invoke2(PlcObject argument0, PlcObject argument1) {
+            return invoker.invoke2(argument0, argument1);
+        }
+
+        public PlcObject invoke3(PlcObject argument0, PlcObject argument1, PlcObject argument2) {
+            return invoker.invoke3(argument0, argument1, argument2);
+        }
+
+        public PlcObject invoke4(PlcObject argument0, PlcObject argument1, PlcObject argument2, PlcObject argument3) {
+            return invoker.invoke4(argument0, argument1, argument2, argument3);
         }
 
         @Override
@@ -255,12 +462,155 @@ public final class Environment {
                     ", arity=" + parameterTypes.size() +
                     ", parameterTypes=" + parameterTypes +
                     ", returnType=" + returnType +
-                    ", function=" + function +
+                    ", function=" + invoker +
                     '}';
         }
 
     }
 
+    /**
+     * Maps the constant values of a switch to the index of the case they
+     * select. Small integer and character ranges use a dense array, anything
+     * else a hash map. Cases after the first default are unreachable and are
+     * left out.
+     */
+    public static final class CaseTable {
+
+        private static final int DENSE_LIMIT = 256;
+
+        private final Map<Object, Integer> indices;
+        private final Class<?> denseType;
+        private final int low;
+        private final int[] dense;
+        private final int fallback;
+
+        private CaseTable(Map<Object, Integer> indices, Class<?> denseType, int low, int[] dense, int fallback) {
+            this.indices = indices;
+            this.denseType = denseType;
+            this.low = low;
+            this.dense = dense;
+            this.fallback = fallback;
+        }
+
+        /**
+         * Returns true if every case value is a literal, which is required to
+         * build a table.
+         */
+        public static boolean isConstant(List<Ast.Statement.Case> cases) {
+            for (Ast.Statement.Case caseStatement : cases) {
+                if (caseStatement.getValue().isPresent() && !(caseStatement.getValue().get() instanceof Ast.Expression.Literal)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public static CaseTable of(List<Ast.Statement.Case> cases) {
+            if (!isConstant(cases)) {
+                throw new RuntimeException("Case values must be constants.");
+            }
+            int fallback = -1;
+            List<Object> values = new ArrayList<>();
+            for (Ast.Statement.Case caseStatement : cases) {
+                if (!caseStatement.getValue().isPresent()) {
+                    fallback = values.size();
+                    break;
+                }
+                Object literal = ((Ast.Expression.Literal) caseStatement.getValue().get()).getLiteral();
+                // a NIL literal evaluates to the value of the NIL object, not null
+                values.add(literal == null ? NIL.getValue() : literal);
+            }
+            Class<?> denseType = values.isEmpty() ? null : denseKey(values.get(0)) == null ? null : values.get(0).getClass();
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            for (Object value : values) {
+                Integer key = denseKey(value);
+                if (denseType == null || key == null || value.getClass() != denseType) {
+                    denseType = null;
+                    break;
+                }
+                low = Math.min(low, key);
+                high = Math.max(high, key);
+            }
+            if (denseType != null && (long) high - low < DENSE_LIMIT) {
+                int[] dense = new int[high - low + 1];
+                Arrays.fill(dense, fallback);
+                for (int i = values.size() - 1; i >= 0; i--) {
+                    dense[denseKey(values.get(i)) - low] = i;
+                }
+                return new CaseTable(null, denseType, low, dense, fallback);
+            }
+            Map<Object, Integer> indices = new HashMap<>();
+            for (int i = values.size() - 1; i >= 0; i--) {
+                indices.put(values.get(i), i);
+            }
+            return new CaseTable(indices, null, 0, null, fallback);
+        }
+
+        private static Integer denseKey(Object value) {
+            if (value instanceof Character) {
+                return (int) (Character) value;
+            } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 32) {
+                return ((BigInteger) value).intValue();
+            }
+            return null;
+        }
+
+        /**
+         * Returns the index of the case selected by the value, or -1 if there
+         * is no matching case and no default.
+         */
+        public int lookup(Object value) {
+            if (dense != null) {
+                if (value == null || value.getClass() != denseType) {
+                    return fallback;
+                }
+                Integer key = denseKey(value);
+                if (key == null || key - low < 0 || key - low >= dense.length) {
+                    return fallback;
+                }
+                return dense[key - low];
+            }
+            return indices.getOrDefault(value, fallback);
+        }
+
+    }
+
+    /**
+     * Returns the characters of a string object without flattening it.
+     */
+    public static CharSequence text(PlcObject object) {
+        Object value = object.getRawValue();
+        if (!(value instanceof CharSequence)) {
+            throw new RuntimeException("Expected type String, received " + object.getType().getName() + ".");
+        }
+        return (CharSequence) value;
+    }
+
+    /**
+     * Compares two values of the same comparable type, comparing strings
+     * character by character so that ropes and slices are not flattened.
+     */
+    private static final Invoker COMPARE = new Invoker() {
+
+        @Override
+        public PlcObject invoke(PlcObject[] arguments) {
+            return invoke2(arguments[0], arguments[1]);
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public PlcObject invoke2(PlcObject left, PlcObject right) {
+            if (left.getRawValue() instanceof CharSequence && right.getRawValue() instanceof CharSequence) {
+                return integer(CharSequence.compare(text(left), text(right)));
+            } else if (left.getValue() instanceof Comparable && left.getValue().getClass() == right.getValue().getClass()) {
+                return integer(((Comparable) left.getValue()).compareTo(right.getValue()));
+            }
+            throw new RuntimeException("Cannot compare " + left.getType().getName() + " and " + right.getType().getName() + ".");
+        }
+
+    };
+
     static {
         registerType(Type.ANY);
         registerType(Type.NIL);
@@ -271,13 +621,28 @@ public final class Environment {
         registerType(Type.CHARACTER);
         registerType(Type.STRING);
         Type.ANY.scope.defineFunction("stringify", "toString", Arrays.asList(), Type.STRING, args -> Environment.NIL);
-        Type.COMPARABLE.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.COMPARABLE), Type.COMPARABLE, args -> Environment.NIL);
-        Type.INTEGER.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.INTEGER), Type.INTEGER, args -> Environment.NIL);
-        Type.DECIMAL.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.DECIMAL), Type.DECIMAL, args -> Environment.NIL);
-        Type.CHARACTER.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.CHARACTER), Type.CHARACTER, args -> Environment.NIL);
+        Type.COMPARABLE.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.COMPARABLE), Type.COMPARABLE, COMPARE);
+        Type.INTEGER.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.INTEGER), Type.INTEGER, COMPARE);
+        Type.DECIMAL.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.DECIMAL), Type.DECIMAL, COMPARE);
+        Type.CHARACTER.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.CHARACTER), Type.CHARACTER, COMPARE);
         Type.STRING.scope.defineVariable("length", "length()", Type.INTEGER, false, Environment.NIL);
-        Type.STRING.scope.defineFunction("slice", "substring", Arrays.asList(Type.ANY, Type.INTEGER, Type.INTEGER), Type.STRING, args -> Environment.NIL);
-        Type.STRING.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.STRING), Type.STRING, args -> Environment.NIL);
+        Type.STRING.scope.defineFunction("slice", "substring", Arrays.asList(Type.ANY, Type.INTEGER, Type.INTEGER), Type.STRING, new Invoker() {
+
+            @Override
+            public PlcObject invoke(PlcObject[] arguments) {
+                return invoke3(arguments[0], arguments[1], arguments[2]);
+            }
+
+            @Override
+            public PlcObject invoke3(PlcObject text, PlcObject start, PlcObject end) {
+                return create(StringSlice.of(text(text), Interpreter.requireType(BigInteger.class, start).intValueExact(),
+                        Interpreter.requireType(BigInteger.class, end).intValueExact()));
+            }
+
+        });
+        Type.STRING.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.STRING), Type.STRING, COMPARE);
+        TYPES.values().forEach(type -> type.scope.freeze());
+        frozen = true;
     }
 
 }
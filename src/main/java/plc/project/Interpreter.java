@@ -1,31 +1,244 @@
 package plc.project;
-import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+/**
+ * Executes a program. An interpreter holds the state of one execution (its
+ * globals, frames and call site caches) and is used by one thread at a time,
+ * while the AST is only read, so one program can be executed concurrently by
+ * giving each thread its own interpreter.
+ */
 public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
+    private static final String[] NO_DECLARATIONS = new String[0];
     private Scope scope = new Scope(null);
+    private final Scope root;
+    private final Scope library;
+    private Routine routine = null;
+    private Machine machine = null;
+    private PlcOutput output = PlcOutput.system();
+    private Meter meter = null;
+    private Path mappedRoot = null;
+    private boolean lazyGlobals = false;
+    private ForkJoinPool parallelGlobals = null;
+    private ForkJoinPool parallelLoops = null;
+    private int loopThreshold = 0;
+    private Effects effects = null;
+    private final Map<Ast.Statement.While, Optional<Effects.Loop>> loops = new IdentityHashMap<>();
+    private final List<String> initializing = new ArrayList<>();
+    private final Map<Ast.Expression.Function, Environment.Function> targets = new IdentityHashMap<>();
+    private long targetsEpoch = -1;
+    private long callSiteHits = 0;
+    private long callSiteMisses = 0;
     public Interpreter(Scope parent) {
-        scope = new Scope(parent);
-        scope.defineFunction("print", 1, args -> {
-            System.out.println(args.get(0).getValue());
+        library = Lists.library(this::getMeter);
+        // string members are resolved once here, the call sites then cache the builtins
+        library.defineFunction("length", "length", Arrays.asList(Environment.Type.ANY),
+                Environment.Type.INTEGER, new Environment.Invoker() {
+            @Override
+            public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+                return invoke1(arguments[0]);
+            }
+            @Override
+            public Environment.PlcObject invoke1(Environment.PlcObject text) {
+                return Environment.integer(Environment.text(text).length());
+            }
+        });
+        library.defineFunction("slice", "slice", Arrays.asList(Environment.Type.ANY,
+                Environment.Type.ANY, Environment.Type.ANY), Environment.Type.STRING,
+                Environment.getType("String").getFunction("slice", 2).getInvoker());
+        library.defineFunction("compare", "compare", Arrays.asList(Environment.Type.ANY,
+                Environment.Type.ANY), Environment.Type.INTEGER,
+                Environment.getType("Comparable").getFunction("compare", 1).getInvoker());
+        library.defineFunction("flush", 1, args -> {
+            MappedList.flush(args.get(0).getValue());
+            return Environment.NIL;
+        });
+        library.defineFunction("print", 1, args -> {
+            output.println(args.get(0).getValue());
             return Environment.NIL;
         });
+        library.defineFunction("flush", 0, args -> {
+            output.flush();
+            return Environment.NIL;
+        });
+        scope = new Scope(parent, library);
+        root = scope;
     }
     public Scope getScope() {
         return scope;
     }
+    /**
+     * Runs functions defined from now on with an explicit, heap allocated call
+     * stack (see {@link Machine}) instead of the Java stack, so recursion depth
+     * is limited by {@code maxDepth} rather than the thread's stack size.
+     */
+    public void setStackless(int maxDepth) {
+        machine = new Machine(this, maxDepth);
+    }
+    /**
+     * Returns the stackless machine, or null if functions run on the Java
+     * stack.
+     */
+    public Machine getMachine() {
+        return machine;
+    }
+    public PlcOutput getOutput() {
+        return output;
+    }
+    /**
+     * Sets the sink {@code print} writes to. Running a source flushes it when
+     * the program ends.
+     */
+    public void setOutput(PlcOutput output) {
+        this.output = output;
+    }
+    public Meter getMeter() {
+        return meter;
+    }
+    /**
+     * Meters loop iterations and function calls, aborting execution once the
+     * meter's limits are exceeded. A null meter (the default) never aborts.
+     */
+    public void setMeter(Meter meter) {
+        this.meter = meter;
+    }
+    public Path getMappedRoot() {
+        return mappedRoot;
+    }
+    /**
+     * Defines the {@code mapList(path, type, size)} builtin, which maps a list
+     * onto a file below {@code root}. Scripts cannot map files otherwise, and
+     * paths resolving outside the root are rejected.
+     */
+    public void setMappedRoot(Path root) {
+        if (mappedRoot != null) {
+            throw new IllegalStateException("The mapped root is already set.");
+        }
+        mappedRoot = root.toAbsolutePath().normalize();
+        library.defineFunction("mapList", 3, args -> {
+            String path = requireType(String.class, args.get(0));
+            Path resolved = mappedRoot.resolve(path).normalize();
+            if (!resolved.startsWith(mappedRoot) || resolved.equals(mappedRoot)) {
+                throw new RuntimeException("The path " + path + " is outside the mapped root.");
+            }
+            MappedList list = MappedList.map(resolved, Environment.getType(requireType(String.class, args.get(1))),
+                    requireType(BigInteger.class, args.get(2)).intValueExact());
+            if (meter != null) {
+                meter.account(list);
+            }
+            return Environment.create(list);
+        });
+    }
+    public boolean isLazyGlobals() {
+        return lazyGlobals;
+    }
+    /**
+     * Evaluates the initializer of each global defined from now on when the
+     * global is first read, rather than when it is defined. Initializers
+     * then run in dependency order, so a global may be initialized from one
+     * declared after it, and globals which are never read cost nothing.
+     * An initializer which (indirectly) reads its own global fails.
+     */
+    public void setLazyGlobals(boolean lazyGlobals) {
+        this.lazyGlobals = lazyGlobals;
+    }
+    public ForkJoinPool getParallelGlobals() {
+        return parallelGlobals;
+    }
+    /**
+     * Initializes the globals of a source on the pool, each once the globals
+     * its initializer reads (directly or through functions, see
+     * {@link Effects}) are initialized, so independent initializers run in
+     * parallel. Functions are defined first and may be called by any
+     * initializer. As in declaration order, reading a global declared later
+     * fails because it is not defined yet. A null pool (the default), lazy globals or a meter
+     * initialize globals one at a time in declaration order.
+     */
+    public void setParallelGlobals(ForkJoinPool pool) {
+        this.parallelGlobals = pool;
+    }
+    public ForkJoinPool getParallelLoops() {
+        return parallelLoops;
+    }
+    /**
+     * Runs counted loops whose iterations are independent (see
+     * {@link Effects#loop}) in chunks on the pool, once they have at least
+     * {@code threshold} iterations. Each chunk buffers its stores into lists,
+     * which are applied in index order when every chunk is done, so results
+     * and errors are those of running the loop sequentially. Loops run
+     * sequentially when metered, with lazy globals, on the pool's own
+     * threads, or on the stackless machine. A null pool (the default)
+     * disables this.
+     */
+    public void setParallelLoops(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("The threshold must be positive.");
+        }
+        this.parallelLoops = pool;
+        this.loopThreshold = threshold;
+    }
+    /**
+     * Returns the effects of the source being run, or of an empty source if
+     * functions were defined one at a time.
+     */
+    private Effects effects() {
+        if (effects == null) {
+            effects = new Effects(new Ast.Source(Collections.emptyList(), Collections.emptyList()), root);
+        }
+        return effects;
+    }
+    public long getCallSiteHits() {
+        return callSiteHits;
+    }
+    public long getCallSiteMisses() {
+        return callSiteMisses;
+    }
     @Override
     public Environment.PlcObject visit(Ast.Source ast) {
-        ast.getGlobals().forEach(this::visit);
-        ast.getFunctions().forEach(this::visit);
-        return scope.lookupFunction("main", 0).invoke(new ArrayList<>());
+        effects = new Effects(ast, root);
+        if (parallelGlobals != null && !lazyGlobals && meter == null) {
+            ast.getFunctions().forEach(this::visit);
+            initialize(ast);
+        }
+        else {
+            ast.getGlobals().forEach(this::visit);
+            ast.getFunctions().forEach(this::visit);
+        }
+        return main();
+    }
+    /**
+     * Calls {@code main/0}, flushing the output when it returns.
+     */
+    Environment.PlcObject main() {
+        try {
+            return scope.lookupFunction("main", 0).invoke0();
+        } finally {
+            output.flush();
+        }
     }
     @Override
     public Environment.PlcObject visit(Ast.Global ast) {
-        if (ast.getValue().isPresent()) {
+        if (lazyGlobals && ast.getValue().isPresent()) {
+            Scope global = scope;
+            scope.defineVariable(ast.getName(), ast.getName(), Environment.Type.ANY,
+                    ast.getMutable(), Environment.NIL).setInitializer(() -> initialize(ast, global));
+        }
+        else if (ast.getValue().isPresent()) {
             scope.defineVariable(ast.getName(), ast.getMutable(),
                     visit(ast.getValue().get()));
         }
@@ -34,28 +247,188 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         }
         return Environment.NIL;
     }
-    @Override
-    public Environment.PlcObject visit(Ast.Function ast) {
-        Scope originalScope = scope;
-        scope.defineFunction(ast.getName(),ast.getParameters().size(), args -> {
-            scope = new Scope(originalScope);
-            for (int i = 0; i < ast.getParameters().size(); i++) {
-                scope.defineVariable(ast.getParameters().get(i), true,
-                        args.get(i));
+    /**
+     * Evaluates the initializer of a lazy global in the scope it was defined
+     * in, whatever scope the read that triggered it was made from.
+     */
+    private Environment.PlcObject initialize(Ast.Global ast, Scope global) {
+        int index = initializing.indexOf(ast.getName());
+        if (index >= 0) {
+            List<String> cycle = new ArrayList<>(initializing.subList(index, initializing.size()));
+            cycle.add(ast.getName());
+            throw new RuntimeException("Cyclic initialization of globals: " + String.join(" -> ", cycle) + ".");
+        }
+        initializing.add(ast.getName());
+        Scope callerScope = scope;
+        Routine callerRoutine = routine;
+        scope = global;
+        routine = null;
+        try {
+            return visit(ast.getValue().get());
+        }
+        finally {
+            scope = callerScope;
+            routine = callerRoutine;
+            initializing.remove(initializing.size() - 1);
+        }
+    }
+    /**
+     * Initializes the globals of a source in parallel. Initializers with
+     * effects beyond reading globals are ordered by declaration against every
+     * initializer they may interfere with and run on this thread, so output
+     * and results are the same on every run. Pure initializers run on the
+     * pool, each worker thread evaluating them with its own interpreter
+     * whose functions are defined in a child of the root scope. If several
+     * initializers fail, the error of the first declared is thrown.
+     */
+    private void initialize(Ast.Source ast) {
+        List<Ast.Global> globals = ast.getGlobals();
+        int count = globals.size();
+        Map<String, Integer> indices = new HashMap<>();
+        Effects.Summary[] summaries = new Effects.Summary[count];
+        Environment.Variable[] variables = new Environment.Variable[count];
+        for (int i = 0; i < count; i++) {
+            Ast.Global global = globals.get(i);
+            indices.put(global.getName(), i);
+            variables[i] = scope.defineVariable(global.getName(), global.getName(), Environment.Type.ANY,
+                    global.getMutable(), Environment.NIL);
+            // until initialized, a global reads as undefined, as it would in declaration order
+            variables[i].setInitializer(() -> {
+                throw new RuntimeException("The variable " + global.getName() + " is not defined in this scope.");
+            });
+            if (global.getValue().isPresent()) {
+                summaries[i] = effects.of(global.getValue().get());
             }
-            try {
-                ast.getStatements().forEach(this::visit);
+        }
+        // a global reading itself or a later global runs alone, so that read fails deterministically
+        boolean[] barriers = new boolean[count];
+        List<List<Integer>> dependencies = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<Integer> dependency = new ArrayList<>();
+            if (summaries[i] != null) {
+                for (String name : summaries[i].getReads()) {
+                    int j = indices.get(name);
+                    if (j >= i) {
+                        barriers[i] = true;
+                    }
+                    else {
+                        dependency.add(j);
+                    }
+                }
             }
-            catch (Return returnValue) {
-                return returnValue.value;
+            for (int j = 0; j < i; j++) {
+                if (!dependency.contains(j) && (barriers[i] || barriers[j]
+                        || summaries[i] != null && summaries[j] != null && interferes(globals, summaries, i, j))) {
+                    dependency.add(j);
+                }
             }
-            finally {
-                scope = originalScope;
+            dependencies.add(dependency);
+        }
+        CompletableFuture<?>[] ready = new CompletableFuture<?>[count];
+        CompletableFuture<?>[] done = new CompletableFuture<?>[count];
+        Throwable[] failures = new Throwable[count];
+        Map<Thread, Interpreter> workers = new ConcurrentHashMap<>();
+        for (int i = 0; i < count; i++) {
+            ready[i] = CompletableFuture.allOf(dependencies.get(i).stream().map(j -> done[j]).toArray(CompletableFuture[]::new));
+            if (summaries[i] == null) {
+                Environment.Variable variable = variables[i];
+                done[i] = ready[i].thenRun(() -> variable.setValue(Environment.NIL));
             }
-            return Environment.NIL;
+            else if (summaries[i].isPure() && !barriers[i]) {
+                int index = i;
+                done[i] = ready[i].thenRunAsync(() -> initialize(worker(ast, workers),
+                        globals.get(index), variables[index], failures, index), parallelGlobals);
+            }
+            else {
+                done[i] = new CompletableFuture<>();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (summaries[i] != null && (!summaries[i].isPure() || barriers[i])) {
+                try {
+                    ready[i].join();
+                    initialize(this, globals.get(i), variables[i], failures, i);
+                    done[i].complete(null);
+                }
+                catch (RuntimeException | Error e) {
+                    done[i].completeExceptionally(e);
+                }
+            }
+        }
+        CompletableFuture.allOf(done).handle((result, error) -> null).join();
+        for (Throwable failure : failures) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            else if (failure != null) {
+                throw (Error) failure;
+            }
+        }
+    }
+    /**
+     * Returns true if the initializers of globals i and j must not run at
+     * the same time: one has external effects, or writes a global the other
+     * reads, writes or initializes.
+     */
+    private static boolean interferes(List<Ast.Global> globals, Effects.Summary[] summaries, int i, int j) {
+        Effects.Summary first = summaries[i];
+        Effects.Summary second = summaries[j];
+        return first.isExternal() || second.isExternal()
+                || writes(first, second, globals.get(j).getName()) || writes(second, first, globals.get(i).getName());
+    }
+    private static boolean writes(Effects.Summary writer, Effects.Summary other, String name) {
+        return writer.getWrites().contains(name) || !Collections.disjoint(writer.getWrites(), other.getReads())
+                || !Collections.disjoint(writer.getWrites(), other.getWrites());
+    }
+    private static void initialize(Interpreter interpreter, Ast.Global global, Environment.Variable variable,
+            Throwable[] failures, int index) {
+        try {
+            variable.setValue(interpreter.visit(global.getValue().get()));
+        }
+        catch (RuntimeException | Error e) {
+            failures[index] = e;
+            throw e;
+        }
+    }
+    /**
+     * Returns the interpreter the current worker thread evaluates
+     * initializers with, creating it on the thread's first initializer.
+     */
+    private Interpreter worker(Ast.Source ast, Map<Thread, Interpreter> workers) {
+        return workers.computeIfAbsent(Thread.currentThread(), thread -> {
+            Interpreter worker = new Interpreter(root);
+            worker.output = output;
+            if (machine != null) {
+                worker.setStackless(machine.getMaxDepth());
+            }
+            ast.getFunctions().forEach(worker::visit);
+            return worker;
         });
+    }
+    @Override
+    public Environment.PlcObject visit(Ast.Function ast) {
+        define(ast, machine != null ?
+                machine.define(ast, scope) : new Routine(ast, scope));
         return Environment.NIL;
     }
+    /**
+     * Defines a function from code lowered ahead of time, or when it is first
+     * called, running it on the stackless machine.
+     */
+    void define(Ast.Function ast, Supplier<Machine.Code> code) {
+        if (machine == null) {
+            throw new IllegalStateException("Lowered code requires a stackless interpreter.");
+        }
+        define(ast, machine.define(ast, code, scope));
+    }
+    private void define(Ast.Function ast, Environment.Invoker invoker) {
+        List<Environment.Type> parameterTypes = new ArrayList<>();
+        for (int i = 0; i < ast.getParameters().size(); i++) {
+            parameterTypes.add(Environment.Type.ANY);
+        }
+        scope.defineFunction(ast.getName(), ast.getName(), parameterTypes,
+                Environment.Type.ANY, invoker);
+    }
     @Override
     public Environment.PlcObject visit(Ast.Statement.Expression ast) {
         visit(ast.getExpression());
@@ -79,7 +452,7 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
             requireType(List.class, variable.getValue());
             int offset =
                     ((BigInteger)visit(access.getOffset().get()).getValue()).intValue();
-            ((List<Object>)variable.getValue().getValue()).set(offset,
+            TypedList.store((List<?>)variable.getValue().getValue(), offset,
                     value.getValue());
         }
         else {
@@ -91,62 +464,287 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     public Environment.PlcObject visit(Ast.Statement.If ast) {
         Environment.PlcObject condition = visit(ast.getCondition());
         requireType(Boolean.class, condition);
-        scope = new Scope(scope);
-        try{
-            if ((Boolean)condition.getValue()) {
-                ast.getThenStatements().forEach(this::visit);
-            }
-            else {
-                ast.getElseStatements().forEach(this::visit);
-            }
-        } finally {
-            scope = scope.getParent();
+        if ((Boolean)condition.getValue()) {
+            block(ast.getThenStatements());
+        }
+        else {
+            block(ast.getElseStatements());
         }
         return Environment.NIL;
     }
     @Override
     public Environment.PlcObject visit(Ast.Statement.Switch ast) {
         Environment.PlcObject condition = visit(ast.getCondition());
-        scope = new Scope(scope);
-        try{
-            for (Ast.Statement.Case caseStatement:ast.getCases()) {
-                if (caseStatement.getValue().isPresent()) {
-                    Environment.PlcObject caseValue =
-                            visit(caseStatement.getValue().get());
-                    if (condition.getValue().equals(caseValue.getValue())) {
-                        caseStatement.getStatements().forEach(this::visit);
-                        return Environment.NIL;
-                    }
-                }
-                else {
-                    caseStatement.getStatements().forEach(this::visit);
+        // unanalyzed programs build the table on first use; every execution
+        // builds an equal table, so concurrent executions may race harmlessly
+        if (ast.getCaseTable() == null && Environment.CaseTable.isConstant(ast.getCases())) {
+            ast.setCaseTable(Environment.CaseTable.of(ast.getCases()));
+        }
+        if (ast.getCaseTable() != null) {
+            int index = ast.getCaseTable().lookup(condition.getValue());
+            if (index >= 0) {
+                block(ast.getCases().get(index).getStatements());
+            }
+            return Environment.NIL;
+        }
+        for (Ast.Statement.Case caseStatement:ast.getCases()) {
+            if (caseStatement.getValue().isPresent()) {
+                Environment.PlcObject caseValue =
+                        visit(caseStatement.getValue().get());
+                if (condition.getValue().equals(caseValue.getValue())) {
+                    block(caseStatement.getStatements());
                     return Environment.NIL;
                 }
             }
-        } finally {
-            scope = scope.getParent();
+            else {
+                block(caseStatement.getStatements());
+                return Environment.NIL;
+            }
         }
         return Environment.NIL;
     }
     @Override
     public Environment.PlcObject visit(Ast.Statement.Case ast) {
-        ast.getStatements().forEach(this::visit);
+        block(ast.getStatements());
         return Environment.NIL;
     }
     @Override
     public Environment.PlcObject visit(Ast.Statement.While ast) {
+        if (parallelLoops != null && meter == null && !lazyGlobals && parallel(ast)) {
+            return Environment.NIL;
+        }
+        String[] names = declarations(ast.getStatements());
+        if (names.length == 0) {
+            while (requireType(Boolean.class, visit(ast.getCondition()))){
+                statements(ast.getStatements());
+                if (meter != null) {
+                    meter.step();
+                }
+            }
+            return Environment.NIL;
+        }
+        // one scope is reused by every iteration, with its slots reset
+        Scope body = new Scope(scope, names);
         while (requireType(Boolean.class, visit(ast.getCondition()))){
+            body.reset();
+            scope = body;
             try {
-                scope = new Scope(scope);
-                ast.getStatements().forEach(this::visit);
+                statements(ast.getStatements());
             } finally {
-                scope = scope.getParent();
+                scope = body.getParent();
+            }
+            if (meter != null) {
+                meter.step();
             }
         }
         return Environment.NIL;
     }
+    /**
+     * Runs a loop in chunks on the pool if it is a counted loop with enough
+     * iterations and no list it stores into is also reachable through
+     * another variable it reads. Returns false, having run nothing, if the
+     * loop must run sequentially.
+     */
+    private boolean parallel(Ast.Statement.While ast) {
+        Effects.Loop loop = loops.computeIfAbsent(ast, key -> Optional.ofNullable(effects().loop(key))).orElse(null);
+        if (loop == null || Thread.currentThread() instanceof ForkJoinWorkerThread
+                && ((ForkJoinWorkerThread) Thread.currentThread()).getPool() == parallelLoops) {
+            return false;
+        }
+        Environment.Variable index;
+        Map<String, List<?>> written = new HashMap<>();
+        try {
+            index = scope.lookupVariable(loop.getIndex());
+            Object start = index.getValue().getValue();
+            Object bound = visit(loop.getBound()).getValue();
+            if (!(start instanceof BigInteger) || !(bound instanceof BigInteger)
+                    || ((BigInteger) start).bitLength() >= 32 || ((BigInteger) bound).bitLength() >= 32
+                    || ((BigInteger) bound).longValue() - ((BigInteger) start).longValue() < loopThreshold) {
+                return false;
+            }
+            Set<Object> lists = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (String name : loop.getWritten()) {
+                Object value = scope.lookupVariable(name).getValue().getValue();
+                if (!(value instanceof List) || !lists.add(value)) {
+                    return false;
+                }
+                written.put(name, (List<?>) value);
+            }
+            for (String name : loop.getShared()) {
+                if (lists.contains(scope.lookupVariable(name).getValue().getValue())) {
+                    return false;
+                }
+            }
+            for (String name : loop.getGlobals()) {
+                if (lists.contains(root.lookupVariable(name).getValue().getValue())) {
+                    return false;
+                }
+            }
+            run(loop, index, ((BigInteger) start).intValue(), ((BigInteger) bound).intValue(), written);
+            return true;
+        }
+        catch (Loop.Failure failure) {
+            if (failure.getCause() instanceof Error) {
+                throw (Error) failure.getCause();
+            }
+            throw (RuntimeException) failure.getCause();
+        }
+        catch (RuntimeException e) {
+            // anything the loop itself would fail on is reported by running it
+            return false;
+        }
+    }
+    private void run(Effects.Loop loop, Environment.Variable index, int from, int to, Map<String, List<?>> written) {
+        int count = (int) Math.min(to - from, 4L * parallelLoops.getParallelism());
+        int size = (to - from + count - 1) / count;
+        List<Loop> chunks = new ArrayList<>();
+        for (int start = from; start < to; start += size) {
+            chunks.add(new Loop(loop, scope, start, Math.min(to, start + size), written));
+        }
+        parallelLoops.invokeAll(chunks);
+        for (Loop chunk : chunks) {
+            chunk.apply(index);
+        }
+        index.setValue(Environment.integer(to));
+    }
+    /**
+     * A chunk of a parallel loop, run by its own interpreter with its own
+     * copies of the functions the loop calls. The lists the loop stores into
+     * are replaced by overlays buffering the stores.
+     */
+    private final class Loop implements Callable<Void> {
+        private final Effects.Loop loop;
+        private final Scope enclosing;
+        private final int from;
+        private final int to;
+        private final Map<String, List<?>> written;
+        private final List<Overlay> overlays = new ArrayList<>();
+        private int failedAt;
+        private Throwable failure = null;
+        private Loop(Effects.Loop loop, Scope enclosing, int from, int to, Map<String, List<?>> written) {
+            this.loop = loop;
+            this.enclosing = enclosing;
+            this.from = from;
+            this.to = to;
+            this.written = written;
+            this.failedAt = to;
+        }
+        @Override
+        public Void call() {
+            Interpreter worker = new Interpreter(root);
+            loop.getFunctions().forEach(worker::visit);
+            Scope chunk = new Scope(enclosing);
+            for (Ast.Function function : loop.getFunctions()) {
+                Environment.Function copy = worker.root.lookupFunction(function.getName(), function.getParameters().size());
+                chunk.defineFunction(copy.getName(), copy.getJvmName(), copy.getParameterTypes(),
+                        copy.getReturnType(), copy.getInvoker());
+            }
+            Environment.Variable index = chunk.defineVariable(loop.getIndex(), loop.getIndex(),
+                    Environment.Type.ANY, true, Environment.NIL);
+            for (Map.Entry<String, List<?>> entry : written.entrySet()) {
+                Overlay overlay = new Overlay(entry.getValue(), from, to);
+                overlays.add(overlay);
+                chunk.defineVariable(entry.getKey(), entry.getKey(), Environment.Type.ANY, true, Environment.create(overlay));
+            }
+            String[] names = declarations(loop.getBody());
+            Scope body = names.length == 0 ? chunk : new Scope(chunk, names);
+            int k = from;
+            try {
+                for (; k < to; k++) {
+                    index.setValue(Environment.integer(k));
+                    if (body != chunk) {
+                        body.reset();
+                    }
+                    worker.scope = body;
+                    worker.statements(loop.getBody());
+                }
+            }
+            catch (RuntimeException | Error e) {
+                failure = e;
+                failedAt = k;
+            }
+            return null;
+        }
+        /**
+         * Applies the stores of the iterations that ran, in order, leaving
+         * the index where the sequential loop would have stopped if an
+         * iteration or a store failed.
+         */
+        private void apply(Environment.Variable index) {
+            for (int k = from; k < Math.min(to, failedAt + 1); k++) {
+                try {
+                    for (Overlay overlay : overlays) {
+                        overlay.apply(k);
+                    }
+                }
+                catch (RuntimeException | Error e) {
+                    failure = e;
+                    failedAt = k;
+                }
+                if (k == failedAt) {
+                    index.setValue(Environment.integer(k));
+                    throw new Failure(failure);
+                }
+            }
+        }
+        /**
+         * Carries the error of an iteration out of {@link #parallel}, which
+         * otherwise falls back to running the loop sequentially.
+         */
+        private final class Failure extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            private Failure(Throwable cause) {
+                super(cause);
+            }
+        }
+    }
+    /**
+     * A list as seen by one chunk of a parallel loop: stores to the chunk's
+     * indices are buffered, and reads of them see the buffered values.
+     */
+    private static final class Overlay extends AbstractList<Object> {
+        private final List<?> list;
+        private final int from;
+        private final Object[] values;
+        private Overlay(List<?> list, int from, int to) {
+            this.list = list;
+            this.from = from;
+            this.values = new Object[to - from];
+        }
+        @Override
+        public int size() {
+            return list.size();
+        }
+        @Override
+        public Object get(int index) {
+            Object value = index >= from && index - from < values.length ? values[index - from] : null;
+            return value != null ? value : list.get(index);
+        }
+        @Override
+        public Object set(int index, Object value) {
+            if (index < 0 || index >= list.size()) {
+                throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + list.size());
+            }
+            values[index - from] = value;
+            return null;
+        }
+        private void apply(int index) {
+            if (values[index - from] != null) {
+                TypedList.store(list, index, values[index - from]);
+            }
+        }
+    }
     @Override
     public Environment.PlcObject visit(Ast.Statement.Return ast) {
+        if (ast.isTailCall() && routine != null) {
+            Ast.Expression.Function call = (Ast.Expression.Function)ast.getValue();
+            Environment.Function function = resolve(call);
+            if (function.getInvoker() == routine) {
+                routine.prepareTailCall(call.getArguments());
+                throw TailCall.INSTANCE;
+            }
+            throw new Return(call(function, call.getArguments()));
+        }
         throw new Return(visit(ast.getValue()));
     }
     @Override
@@ -164,118 +762,21 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     }
     @Override
     public Environment.PlcObject visit(Ast.Expression.Binary ast) {
+        Operator operator = Operator.of(ast.getOperator());
         Environment.PlcObject left = visit(ast.getLeft());
-        Object leftValue = left.getValue();
-        switch (ast.getOperator()) {
-            case "&&":
-                if (!(Boolean)leftValue) {
-                    return Environment.create(false);
-                }
-                else {
-                    return Environment.create((Boolean)leftValue &&
-                            (Boolean)visit(ast.getRight()).getValue());
-                }
-            case "||":
-                if ((Boolean)leftValue) {
-                    return Environment.create(true);
-                }
-                else {
-                    return Environment.create((Boolean)leftValue ||
-                            (Boolean)visit(ast.getRight()).getValue());
-                }
-            case "<":
-                return Environment.create(((Comparable)
-                        leftValue).compareTo(visit(ast.getRight()).getValue())<0);
-            case ">":
-                return Environment.create(((Comparable)
-                        leftValue).compareTo(visit(ast.getRight()).getValue())>0);
-            case "==":
-                return
-                        Environment.create(leftValue.equals(visit(ast.getRight()).getValue()));
-            case "!=":
-                return Environment.create(!
-                        leftValue.equals(visit(ast.getRight()).getValue()));
-            case "+":
-                if (leftValue instanceof String && visit(ast.getRight()).getValue()
-                        instanceof String) {
-                    return Environment.create(leftValue.toString() +
-                            visit(ast.getRight()).getValue().toString());
-                } else if (leftValue instanceof BigDecimal &&
-                        visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                    return Environment.create(new
-                            BigDecimal(leftValue.toString()).add(new
-                            BigDecimal(visit(ast.getRight()).getValue().toString())));
-                } else if (leftValue instanceof BigInteger &&
-                        visit(ast.getRight()).getValue() instanceof BigInteger) {
-                    return
-                            Environment.create(((BigInteger)leftValue).add((BigInteger)visit(ast.getRight()).getValue()));
-                } else {
-                    throw new RuntimeException("Mismatched Types +");
-                }
-            case "-":
-                if (leftValue instanceof BigDecimal &&
-                        visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                    return Environment.create(new
-                            BigDecimal(leftValue.toString()).subtract(new
-                            BigDecimal(visit(ast.getRight()).getValue().toString())));
-                }
-                else if (leftValue instanceof BigInteger &&
-                        visit(ast.getRight()).getValue() instanceof BigInteger){
-                    return
-                            Environment.create(((BigInteger)leftValue).subtract((BigInteger)visit(ast.getRight(
-                            )).getValue()));
-                } else {
-                    throw new RuntimeException("Mismatched Types -");
-                }
-            case "*":
-                if (leftValue instanceof BigDecimal &&
-                        visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                    return Environment.create(new
-                            BigDecimal(leftValue.toString()).multiply(new
-                            BigDecimal(visit(ast.getRight()).getValue().toString())));
-                }
-                else if (leftValue instanceof BigInteger &&
-                        visit(ast.getRight()).getValue() instanceof BigInteger){
-                    return
-                            Environment.create(((BigInteger)leftValue).multiply((BigInteger)visit(ast.getRight(
-                            )).getValue()));
-                } else {
-                    throw new RuntimeException("Mismatched Types *");
-                }
-            case "/":
-                if (leftValue instanceof BigDecimal &&
-                        visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                    return Environment.create(new
-                            BigDecimal(leftValue.toString()).divide(new
-                            BigDecimal(visit(ast.getRight()).getValue().toString()), RoundingMode.HALF_EVEN));
-                }
-                else if (leftValue instanceof BigInteger &&
-                        visit(ast.getRight()).getValue() instanceof BigInteger){
-                    return
-                            Environment.create(((BigInteger)leftValue).divide((BigInteger)visit(ast.getRight())
-                                    .getValue()));
-                } else {
-                    throw new RuntimeException("Mismatched Types /");
-                }
-            case "^":
-                if (leftValue instanceof BigDecimal ||
-                        visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                    throw new RuntimeException("Can't use ^ operator with decimals");
-                }
-                if (leftValue instanceof BigInteger) {
-                    BigInteger base = (BigInteger)leftValue;
-                    BigInteger exponent =
-                            (BigInteger)visit(ast.getRight()).getValue();
-                    return Environment.create(base.pow(exponent.intValue()));
-                }
-                else{
-                    throw new UnsupportedOperationException();
-                }
-            default:
-                throw new UnsupportedOperationException();
+        if (operator == Operator.AND && !(Boolean) left.getValue()) {
+            return Environment.create(false);
+        } else if (operator == Operator.OR && (Boolean) left.getValue()) {
+            return Environment.create(true);
         }
-        // throw new UnsupportedOperationException();
+        Environment.PlcObject right = visit(ast.getRight());
+        Environment.PlcObject result = operator.apply(left, right);
+        if (meter != null) {
+            meter.account(result.getRawValue());
+        }
+        return result;
     }
+
     @Override
     public Environment.PlcObject visit(Ast.Expression.Access ast) {
         Environment.Variable variable = scope.lookupVariable(ast.getName());
@@ -287,8 +788,8 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
             requireType(BigInteger.class, offset);
             // Check if variable value is a list
             if (variable.getValue().getValue() instanceof List) {
-                return Environment.create(((List<Environment.PlcObject>)
-                        variable.getValue().getValue()).get(((BigInteger) offset.getValue()).intValue()));
+                return TypedList.load((List<?>)variable.getValue().getValue(),
+                        ((BigInteger) offset.getValue()).intValue());
             }
             else {
                 throw new UnsupportedOperationException();
@@ -300,11 +801,33 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     }
     @Override
     public Environment.PlcObject visit(Ast.Expression.Function ast) {
-        Environment.Function function =
-                scope.lookupFunction(ast.getName(),ast.getArguments().size());
-        List<Environment.PlcObject> arguments =
-                ast.getArguments().stream().map(this::visit).collect(Collectors.toList());
-        return function.invoke(arguments);
+        return call(resolve(ast), ast.getArguments());
+    }
+    private Environment.PlcObject call(Environment.Function function,
+                                       List<Ast.Expression> arguments) {
+        switch (arguments.size()) {
+            case 0:
+                return function.invoke0();
+            case 1:
+                return function.invoke1(visit(arguments.get(0)));
+            case 2:
+                return function.invoke2(visit(arguments.get(0)),
+                        visit(arguments.get(1)));
+            case 3:
+                return function.invoke3(visit(arguments.get(0)),
+                        visit(arguments.get(1)), visit(arguments.get(2)));
+            case 4:
+                return function.invoke4(visit(arguments.get(0)),
+                        visit(arguments.get(1)), visit(arguments.get(2)),
+                        visit(arguments.get(3)));
+            default:
+                Environment.PlcObject[] values =
+                        new Environment.PlcObject[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = visit(arguments.get(i));
+                }
+                return function.invoke(values);
+        }
     }
     @Override
     public Environment.PlcObject visit(Ast.Expression.PlcList ast) {
@@ -312,12 +835,96 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         for (Ast.Expression expr:ast.getValues()) {
             list.add(visit(expr).getValue());
         }
-        return Environment.create(list);
+        TypedList values = TypedList.of(list);
+        if (meter != null) {
+            meter.account(values);
+        }
+        return Environment.create(values);
+    }
+    /**
+     * Resolves the target of a call, using the target cached for the call site
+     * while no function has been defined since it was resolved. The cache is
+     * kept by the interpreter rather than the AST, which is shared by every
+     * execution of the program.
+     */
+    private Environment.Function resolve(Ast.Expression.Function ast) {
+        return resolve(ast, scope);
+    }
+    Environment.Function resolve(Ast.Expression.Function ast, Scope scope) {
+        long epoch = root.getEpoch();
+        if (epoch != targetsEpoch) {
+            targets.clear();
+            targetsEpoch = epoch;
+        }
+        Environment.Function function = targets.get(ast);
+        if (function != null) {
+            callSiteHits++;
+            return function;
+        }
+        callSiteMisses++;
+        function = scope.lookupFunction(ast.getName(), ast.getArguments().size());
+        targets.put(ast, function);
+        return function;
+    }
+    /**
+     * Executes the statements of a block. A scope is only created if the block
+     * declares variables, which are then stored in its slots.
+     */
+    private void block(List<Ast.Statement> statements) {
+        String[] names = declarations(statements);
+        if (names.length == 0) {
+            statements(statements);
+            return;
+        }
+        scope = new Scope(scope, names);
+        try {
+            statements(statements);
+        } finally {
+            scope = scope.getParent();
+        }
+    }
+    private void statements(List<Ast.Statement> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            visit(statements.get(i));
+        }
+    }
+    /**
+     * Returns the slots of a function frame: the parameters, followed by the
+     * variables declared directly in the body.
+     */
+    static String[] slots(Ast.Function ast) {
+        String[] declarations = declarations(ast.getStatements());
+        String[] slots = ast.getParameters().toArray(new String[ast.getParameters().size() + declarations.length]);
+        System.arraycopy(declarations, 0, slots, ast.getParameters().size(), declarations.length);
+        return slots;
+    }
+    /**
+     * Returns the names of the variables declared directly in a block, without
+     * allocating if there are none.
+     */
+    static String[] declarations(List<Ast.Statement> statements) {
+        int count = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            if (statements.get(i) instanceof Ast.Statement.Declaration) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return NO_DECLARATIONS;
+        }
+        String[] names = new String[count];
+        count = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            if (statements.get(i) instanceof Ast.Statement.Declaration) {
+                names[count++] = ((Ast.Statement.Declaration) statements.get(i)).getName();
+            }
+        }
+        return names;
     }
     /**
      * Helper function to ensure an object is of the appropriate type.
      */
-    private static <T> T requireType(Class<T> type, Environment.PlcObject object) {
+    static <T> T requireType(Class<T> type, Environment.PlcObject object) {
         if (type.isInstance(object.getValue())) {
             return type.cast(object.getValue());
         } else {
@@ -325,12 +932,166 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
         }
     }
     /**
-     * Exception class for returning values.
+     * Invoker for functions defined in the source. Arguments are bound straight
+     * into the parameter slots of a frame, and frames are pooled by recursion
+     * depth so that a call does not allocate a new scope once the pool is warm.
+     */
+    private final class Routine extends Environment.Invoker {
+        private final Ast.Function ast;
+        private final Scope parent;
+        private final int arity;
+        private final String[] slots;
+        private Scope[] frames = new Scope[4];
+        private Environment.PlcObject[][] pending = new Environment.PlcObject[4][];
+        private int depth = 0;
+        private Routine(Ast.Function ast, Scope parent) {
+            this.ast = ast;
+            this.parent = parent;
+            this.arity = ast.getParameters().size();
+            this.slots = slots(ast);
+        }
+        private Scope enter(int count) {
+            if (count != arity) {
+                throw new RuntimeException("The function " + ast.getName() + "/" +
+                        arity + " was called with " + count + " arguments.");
+            }
+            if (meter != null) {
+                meter.step();
+            }
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            Scope frame = frames[depth];
+            if (frame == null) {
+                frame = new Scope(parent, slots);
+                frames[depth] = frame;
+            }
+            depth++;
+            return frame;
+        }
+        /**
+         * Evaluates the arguments of a self tail call made from the innermost
+         * active frame. They are only bound once all of them are evaluated,
+         * since the arguments may refer to the current parameters.
+         */
+        private void prepareTailCall(List<Ast.Expression> arguments) {
+            Environment.PlcObject[] values = pending[depth - 1];
+            if (values == null) {
+                values = new Environment.PlcObject[arity];
+                pending[depth - 1] = values;
+            }
+            for (int i = 0; i < arity; i++) {
+                values[i] = visit(arguments.get(i));
+            }
+        }
+        private Environment.PlcObject execute(Scope frame) {
+            Scope callerScope = scope;
+            Routine callerRoutine = routine;
+            routine = this;
+            try {
+                while (true) {
+                    scope = frame;
+                    try {
+                        List<Ast.Statement> statements = ast.getStatements();
+                        for (int i = 0; i < statements.size(); i++) {
+                            visit(statements.get(i));
+                        }
+                        return Environment.NIL;
+                    }
+                    catch (Return returnValue) {
+                        return returnValue.value;
+                    }
+                    catch (TailCall tailCall) {
+                        if (meter != null) {
+                            meter.step();
+                        }
+                        Environment.PlcObject[] values = pending[depth - 1];
+                        frame.reset();
+                        for (int i = 0; i < arity; i++) {
+                            frame.bind(i, values[i]);
+                            values[i] = null;
+                        }
+                    }
+                }
+            }
+            finally {
+                // pooled frames must not keep arguments and locals alive
+                frame.reset();
+                scope = callerScope;
+                routine = callerRoutine;
+                depth--;
+            }
+        }
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            Scope frame = enter(arguments.length);
+            for (int i = 0; i < arguments.length; i++) {
+                frame.bind(i, arguments[i]);
+            }
+            return execute(frame);
+        }
+        @Override
+        public Environment.PlcObject invoke0() {
+            return execute(enter(0));
+        }
+        @Override
+        public Environment.PlcObject invoke1(Environment.PlcObject argument0) {
+            Scope frame = enter(1);
+            frame.bind(0, argument0);
+            return execute(frame);
+        }
+        @Override
+        public Environment.PlcObject invoke2(Environment.PlcObject argument0,
+                                             Environment.PlcObject argument1) {
+            Scope frame = enter(2);
+            frame.bind(0, argument0);
+            frame.bind(1, argument1);
+            return execute(frame);
+        }
+        @Override
+        public Environment.PlcObject invoke3(Environment.PlcObject argument0,
+                                             Environment.PlcObject argument1,
+                                             Environment.PlcObject argument2) {
+            Scope frame = enter(3);
+            frame.bind(0, argument0);
+            frame.bind(1, argument1);
+            frame.bind(2, argument2);
+            return execute(frame);
+        }
+        @Override
+        public Environment.PlcObject invoke4(Environment.PlcObject argument0,
+                                             Environment.PlcObject argument1,
+                                             Environment.PlcObject argument2,
+                                             Environment.PlcObject argument3) {
+            Scope frame = enter(4);
+            frame.bind(0, argument0);
+            frame.bind(1, argument1);
+            frame.bind(2, argument2);
+            frame.bind(3, argument3);
+            return execute(frame);
+        }
+    }
+    /**
+     * Signals a self tail call whose arguments have been stored in the current
+     * routine, unwinding to the routine so it can reuse its frame.
+     */
+    private static final class TailCall extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final TailCall INSTANCE = new TailCall();
+        private TailCall() {
+            super(null, null, false, false);
+        }
+    }
+    /**
+     * Exception class for returning values. Returns are ordinary control flow,
+     * so no stack trace is captured.
      */
     public static class Return extends RuntimeException {
         public final Environment.PlcObject value;
         public Return(Environment.PlcObject value) {
+            super(null, null, false, false);
             this.value = value;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,440 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Builtins operating on whole lists: {@code sum}, {@code min}, {@code max},
+ * {@code sort}, {@code indexOf}, {@code fill} and {@code copy}. A typed list
+ * is processed as its primitive storage in a single loop, which runs on the
+ * common ForkJoin pool for lists of at least {@value #PARALLEL_THRESHOLD}
+ * elements. Sums are exact, so they do not depend on how the list is split.
+ *
+ * The builtins are defined in a library scope which the interpreter and the
+ * analyzer consult last, so functions of the same names defined by a program
+ * or its embedder take precedence. The
+ * {@link Generator} emits calls to the static methods on Java arrays below,
+ * which do the same for the arrays generated code uses.
+ */
+public final class Lists {
+
+    static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private static final String PREFIX = "plc.project.Lists.";
+    private static final Set<String> RETURNS_ELEMENT = Set.of(PREFIX + "sum", PREFIX + "min", PREFIX + "max", PREFIX + "copy");
+    private static final Environment.Invoker COMPARE = Environment.getType("Comparable").getFunction("compare", 1).getInvoker();
+    private static final Comparator<Object> ORDER = (left, right) ->
+            ((BigInteger) COMPARE.invoke2(Environment.create(left), Environment.create(right)).getValue()).intValue();
+
+    private Lists() {}
+
+    /**
+     * Returns a new root scope defining the builtins.
+     */
+    static Scope library() {
+        return library(() -> null);
+    }
+
+    /**
+     * Returns a new root scope defining the builtins, which account the lists
+     * they allocate to the current meter, if any.
+     */
+    static Scope library(Supplier<Meter> meters) {
+        Scope scope = new Scope(null);
+        List<Environment.Type> list = Arrays.asList(Environment.Type.ANY);
+        List<Environment.Type> listAndValue = Arrays.asList(Environment.Type.ANY, Environment.Type.ANY);
+        scope.defineFunction("sum", PREFIX + "sum", list, Environment.Type.ANY,
+                args -> Environment.create(sum(list(args.get(0)))));
+        scope.defineFunction("min", PREFIX + "min", list, Environment.Type.ANY,
+                args -> Environment.create(extreme(list(args.get(0)), false)));
+        scope.defineFunction("max", PREFIX + "max", list, Environment.Type.ANY,
+                args -> Environment.create(extreme(list(args.get(0)), true)));
+        scope.defineFunction("sort", PREFIX + "sort", list, Environment.Type.NIL, args -> {
+            List<?> values = list(args.get(0));
+            Meter meter = meters.get();
+            if (meter != null && !sortsInPlace(values)) {
+                long size = Meter.sizeOf(values);
+                meter.allocate(size, size);
+            }
+            sort(values);
+            return Environment.NIL;
+        });
+        scope.defineFunction("indexOf", PREFIX + "indexOf", listAndValue, Environment.Type.INTEGER,
+                args -> Environment.integer(indexOf(list(args.get(0)), args.get(1).getValue())));
+        scope.defineFunction("fill", PREFIX + "fill", listAndValue, Environment.Type.NIL, args -> {
+            fill(list(args.get(0)), args.get(1).getValue());
+            return Environment.NIL;
+        });
+        scope.defineFunction("copy", PREFIX + "copy", list, Environment.Type.ANY, args -> {
+            List<?> copy = copy(list(args.get(0)));
+            Meter meter = meters.get();
+            if (meter != null) {
+                meter.account(copy);
+            }
+            return Environment.create(copy);
+        });
+        return scope;
+    }
+
+    /**
+     * Returns true if the function is a builtin returning elements of its
+     * list argument, so a call has the type of the argument.
+     */
+    static boolean returnsElement(Environment.Function function) {
+        return RETURNS_ELEMENT.contains(function.getJvmName());
+    }
+
+    /**
+     * Returns true if the function is a builtin storing its second argument
+     * into the list given as its first.
+     */
+    static boolean storesElement(Environment.Function function) {
+        return function.getJvmName().equals(PREFIX + "fill");
+    }
+
+    private static List<?> list(Environment.PlcObject object) {
+        return Interpreter.requireType(List.class, object);
+    }
+
+    private static Object sum(List<?> list) {
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type == Environment.Type.INTEGER) {
+            long[] values = (long[]) ((TypedList) list).array();
+            try {
+                return BigInteger.valueOf(stream(values).reduce(0, Math::addExact));
+            } catch (ArithmeticException e) {
+                return stream(values).mapToObj(BigInteger::valueOf).reduce(BigInteger.ZERO, BigInteger::add);
+            }
+        } else if (type == Environment.Type.DECIMAL) {
+            return stream((double[]) ((TypedList) list).array()).mapToObj(BigDecimal::valueOf).reduce(BigDecimal.ZERO, BigDecimal::add);
+        }
+        Object sum = BigInteger.ZERO;
+        for (int i = 0; i < list.size(); i++) {
+            Object value = list.get(i);
+            if (value instanceof BigInteger && sum instanceof BigInteger) {
+                sum = ((BigInteger) sum).add((BigInteger) value);
+            } else if (value instanceof BigDecimal && (i == 0 || sum instanceof BigDecimal)) {
+                sum = i == 0 ? value : ((BigDecimal) sum).add((BigDecimal) value);
+            } else {
+                throw new RuntimeException("Cannot sum " + Environment.typeOf(sum).getName() + " and "
+                        + Environment.typeOf(value).getName() + ".");
+            }
+        }
+        return sum;
+    }
+
+    private static Object extreme(List<?> list, boolean max) {
+        if (list.isEmpty()) {
+            throw new RuntimeException("The list is empty.");
+        }
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type == Environment.Type.INTEGER) {
+            LongStream values = stream((long[]) ((TypedList) list).array());
+            return BigInteger.valueOf((max ? values.max() : values.min()).getAsLong());
+        } else if (type == Environment.Type.DECIMAL) {
+            DoubleStream values = stream((double[]) ((TypedList) list).array());
+            return BigDecimal.valueOf((max ? values.max() : values.min()).getAsDouble());
+        } else if (type == Environment.Type.CHARACTER) {
+            return max ? max((char[]) ((TypedList) list).array()) : min((char[]) ((TypedList) list).array());
+        }
+        Stream<?> values = list.size() >= PARALLEL_THRESHOLD ? list.parallelStream() : list.stream();
+        return (max ? values.max(ORDER) : values.min(ORDER)).get();
+    }
+
+    private static void sort(List<?> list) {
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type == Environment.Type.INTEGER) {
+            sort((long[]) ((TypedList) list).array());
+        } else if (type == Environment.Type.DECIMAL) {
+            sort((double[]) ((TypedList) list).array());
+        } else if (type == Environment.Type.CHARACTER) {
+            sort((char[]) ((TypedList) list).array());
+        } else if (type == Environment.Type.BOOLEAN) {
+            boolean[] values = (boolean[]) ((TypedList) list).array();
+            int falses = (int) IntStream.range(0, values.length).filter(i -> !values[i]).count();
+            Arrays.fill(values, 0, falses, false);
+            Arrays.fill(values, falses, values.length, true);
+        } else if (list instanceof TypedList) {
+            sort((Object[]) ((TypedList) list).array(), ORDER);
+        } else {
+            Object[] values = list.toArray();
+            sort(values, ORDER);
+            for (int i = 0; i < values.length; i++) {
+                TypedList.store(list, i, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns true if sorting the list needs no working storage. Generic
+     * lists are sorted as a copy, object arrays with a merge buffer and
+     * large arrays by a parallel sort with a work array.
+     */
+    private static boolean sortsInPlace(List<?> list) {
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type == Environment.Type.BOOLEAN) {
+            return true;
+        }
+        return list.size() < PARALLEL_THRESHOLD && (type == Environment.Type.INTEGER
+                || type == Environment.Type.DECIMAL || type == Environment.Type.CHARACTER);
+    }
+
+    private static int indexOf(List<?> list, Object value) {
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type != Environment.Type.ANY && TypedList.storageType(value) != type) {
+            return -1;
+        } else if (type == Environment.Type.INTEGER) {
+            return indexOf((long[]) ((TypedList) list).array(), ((BigInteger) value).longValue());
+        } else if (type == Environment.Type.DECIMAL) {
+            return indexOf((double[]) ((TypedList) list).array(), ((BigDecimal) value).doubleValue());
+        } else if (type == Environment.Type.CHARACTER) {
+            return indexOf((char[]) ((TypedList) list).array(), (char) value);
+        } else if (type == Environment.Type.BOOLEAN) {
+            return indexOf((boolean[]) ((TypedList) list).array(), (boolean) value);
+        }
+        return first(list.size(), i -> {
+            Object element = list.get(i);
+            return element instanceof CharSequence && value instanceof CharSequence
+                    ? CharSequence.compare((CharSequence) element, (CharSequence) value) == 0 : Objects.equals(element, value);
+        });
+    }
+
+    private static void fill(List<?> list, Object value) {
+        Environment.Type type = list instanceof TypedList ? ((TypedList) list).getElementType() : Environment.Type.ANY;
+        if (type == Environment.Type.INTEGER && TypedList.storageType(value) == type) {
+            fill((long[]) ((TypedList) list).array(), ((BigInteger) value).longValue());
+        } else if (type == Environment.Type.DECIMAL && TypedList.storageType(value) == type) {
+            fill((double[]) ((TypedList) list).array(), ((BigDecimal) value).doubleValue());
+        } else if (type == Environment.Type.CHARACTER && TypedList.storageType(value) == type) {
+            fill((char[]) ((TypedList) list).array(), (char) value);
+        } else if (type == Environment.Type.BOOLEAN && TypedList.storageType(value) == type) {
+            fill((boolean[]) ((TypedList) list).array(), (boolean) value);
+        } else if (type == Environment.Type.ANY && list instanceof TypedList) {
+            fill((Object[]) ((TypedList) list).array(), value);
+        } else {
+            for (int i = 0; i < list.size(); i++) {
+                TypedList.store(list, i, value);
+            }
+        }
+    }
+
+    private static List<?> copy(List<?> list) {
+        return list instanceof TypedList ? ((TypedList) list).copy() : TypedList.of(list);
+    }
+
+    private static LongStream stream(long[] values) {
+        return values.length >= PARALLEL_THRESHOLD ? Arrays.stream(values).parallel() : Arrays.stream(values);
+    }
+
+    private static DoubleStream stream(double[] values) {
+        return values.length >= PARALLEL_THRESHOLD ? Arrays.stream(values).parallel() : Arrays.stream(values);
+    }
+
+    private static IntStream stream(int[] values) {
+        return values.length >= PARALLEL_THRESHOLD ? Arrays.stream(values).parallel() : Arrays.stream(values);
+    }
+
+    /**
+     * Returns the first index below {@code size} matching the predicate, or
+     * -1 if there is none.
+     */
+    private static int first(int size, IntPredicate predicate) {
+        if (size >= PARALLEL_THRESHOLD) {
+            return IntStream.range(0, size).parallel().filter(predicate).findFirst().orElse(-1);
+        }
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int sum(int[] values) {
+        return stream(values).sum();
+    }
+
+    public static double sum(double[] values) {
+        return stream(values).sum();
+    }
+
+    public static int min(int[] values) {
+        return stream(values).min().getAsInt();
+    }
+
+    public static double min(double[] values) {
+        return stream(values).min().getAsDouble();
+    }
+
+    public static char min(char[] values) {
+        char min = values[0];
+        for (char value : values) {
+            min = value < min ? value : min;
+        }
+        return min;
+    }
+
+    public static <T extends Comparable<? super T>> T min(T[] values) {
+        return Arrays.stream(values).min(Comparator.naturalOrder()).get();
+    }
+
+    public static int max(int[] values) {
+        return stream(values).max().getAsInt();
+    }
+
+    public static double max(double[] values) {
+        return stream(values).max().getAsDouble();
+    }
+
+    public static char max(char[] values) {
+        char max = values[0];
+        for (char value : values) {
+            max = value > max ? value : max;
+        }
+        return max;
+    }
+
+    public static <T extends Comparable<? super T>> T max(T[] values) {
+        return Arrays.stream(values).max(Comparator.naturalOrder()).get();
+    }
+
+    public static void sort(int[] values) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values);
+        } else {
+            Arrays.sort(values);
+        }
+    }
+
+    public static void sort(long[] values) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values);
+        } else {
+            Arrays.sort(values);
+        }
+    }
+
+    public static void sort(double[] values) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values);
+        } else {
+            Arrays.sort(values);
+        }
+    }
+
+    public static void sort(char[] values) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values);
+        } else {
+            Arrays.sort(values);
+        }
+    }
+
+    public static <T extends Comparable<? super T>> void sort(T[] values) {
+        sort(values, Comparator.naturalOrder());
+    }
+
+    private static <T> void sort(T[] values, Comparator<? super T> order) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(values, order);
+        } else {
+            Arrays.sort(values, order);
+        }
+    }
+
+    public static int indexOf(int[] values, int value) {
+        return first(values.length, i -> values[i] == value);
+    }
+
+    public static int indexOf(long[] values, long value) {
+        return first(values.length, i -> values[i] == value);
+    }
+
+    public static int indexOf(double[] values, double value) {
+        return first(values.length, i -> values[i] == value);
+    }
+
+    public static int indexOf(char[] values, char value) {
+        return first(values.length, i -> values[i] == value);
+    }
+
+    public static int indexOf(boolean[] values, boolean value) {
+        return first(values.length, i -> values[i] == value);
+    }
+
+    public static int indexOf(Object[] values, Object value) {
+        return first(values.length, i -> Objects.equals(values[i], value));
+    }
+
+    public static void fill(int[] values, int value) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSetAll(values, i -> value);
+        } else {
+            Arrays.fill(values, value);
+        }
+    }
+
+    public static void fill(long[] values, long value) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSetAll(values, i -> value);
+        } else {
+            Arrays.fill(values, value);
+        }
+    }
+
+    public static void fill(double[] values, double value) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSetAll(values, i -> value);
+        } else {
+            Arrays.fill(values, value);
+        }
+    }
+
+    public static void fill(char[] values, char value) {
+        Arrays.fill(values, value);
+    }
+
+    public static void fill(boolean[] values, boolean value) {
+        Arrays.fill(values, value);
+    }
+
+    public static void fill(Object[] values, Object value) {
+        if (values.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSetAll(values, i -> value);
+        } else {
+            Arrays.fill(values, value);
+        }
+    }
+
+    public static int[] copy(int[] values) {
+        return values.clone();
+    }
+
+    public static double[] copy(double[] values) {
+        return values.clone();
+    }
+
+    public static char[] copy(char[] values) {
+        return values.clone();
+    }
+
+    public static boolean[] copy(boolean[] values) {
+        return values.clone();
+    }
+
+    public static <T> T[] copy(T[] values) {
+        return values.clone();
+    }
+
+}
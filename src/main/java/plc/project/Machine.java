@@ -0,0 +1,810 @@
+package plc.project;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Executes functions on an explicit call stack kept on the heap, so the depth
+ * of PLC recursion is not limited by the Java thread stack.
+ *
+ * Each {@link Ast.Function} is lowered once into a flat sequence of stack
+ * instructions ({@link Code}). Calls between functions lowered by the same
+ * machine push a {@link Frame} instead of recursing in Java; calls to any
+ * other function (builtins, functions from other interpreters) go through the
+ * regular {@link Environment.Invoker} protocol.
+ */
+public final class Machine {
+
+    private static final int CONST = 0;
+    private static final int NIL = 1;
+    private static final int POP = 2;
+    private static final int DUP = 3;
+    private static final int LOAD = 4;
+    private static final int STORE = 5;
+    private static final int LOAD_INDEX = 6;
+    private static final int STORE_INDEX = 7;
+    private static final int DECLARE = 8;
+    private static final int BINARY = 9;
+    private static final int AND = 10;
+    private static final int OR = 11;
+    private static final int BOOLEAN = 12;
+    private static final int JUMP = 13;
+    private static final int JUMP_IF_FALSE = 14;
+    private static final int JUMP_IF_NOT_EQUAL = 15;
+    private static final int ENTER = 16;
+    private static final int EXIT = 17;
+    private static final int CALL = 18;
+    private static final int TAIL_CALL = 19;
+    private static final int RETURN = 20;
+    private static final int LIST = 21;
+    private static final int SWITCH = 22;
+    private static final int RESET = 23;
+
+    private final Interpreter interpreter;
+    private final int maxDepth;
+    private Frame[] frames = new Frame[16];
+    private int depth = 0;
+    private Environment.PlcObject[] stack = new Environment.PlcObject[64];
+    private int sp = 0;
+    private int quantum = 0;
+    private int taskDepth = -1;
+
+    public Machine(Interpreter interpreter, int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("The maximum depth must be positive.");
+        }
+        this.interpreter = interpreter;
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Lowers the function and returns an invoker which runs it on this machine.
+     */
+    public Environment.Invoker define(Ast.Function ast, Scope parent) {
+        return define(compile(ast), parent);
+    }
+
+    /**
+     * Returns an invoker which runs code lowered ahead of time on this
+     * machine. Code is immutable, so it may be shared by any number of
+     * machines.
+     */
+    public Environment.Invoker define(Code code, Scope parent) {
+        return new Routine(code.ast, code, null, parent);
+    }
+
+    /**
+     * Returns an invoker whose code is only obtained from {@code code} when
+     * the function is first called, which may lower (and analyze) it then.
+     */
+    public Environment.Invoker define(Ast.Function ast, Supplier<Code> code, Scope parent) {
+        return new Routine(ast, null, code, parent);
+    }
+
+    public static Code compile(Ast.Function ast) {
+        Compiler compiler = new Compiler();
+        ast.getStatements().forEach(compiler::visit);
+        compiler.emit(NIL);
+        compiler.emit(RETURN);
+        return new Code(ast, compiler.instructions(), compiler.constants.toArray());
+    }
+
+    /**
+     * A lowered function body.
+     */
+    public static final class Code {
+
+        private final Ast.Function ast;
+        private final String[] slots;
+        private final int arity;
+        private final int[] instructions;
+        private final Object[] constants;
+
+        private Code(Ast.Function ast, int[] instructions, Object[] constants) {
+            this.ast = ast;
+            this.slots = Interpreter.slots(ast);
+            this.arity = ast.getParameters().size();
+            this.instructions = instructions;
+            this.constants = constants;
+        }
+
+        public Ast.Function getAst() {
+            return ast;
+        }
+
+        public int getArity() {
+            return arity;
+        }
+
+    }
+
+    private final class Routine extends Environment.Invoker {
+
+        private final Ast.Function ast;
+        private final int arity;
+        private final Supplier<Code> source;
+        private final Scope parent;
+        private Code code;
+
+        private Routine(Ast.Function ast, Code code, Supplier<Code> source, Scope parent) {
+            this.ast = ast;
+            this.arity = ast.getParameters().size();
+            this.code = code;
+            this.source = source;
+            this.parent = parent;
+        }
+
+        private Code code() {
+            if (code == null) {
+                code = source.get();
+            }
+            return code;
+        }
+
+        private Machine machine() {
+            return Machine.this;
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            if (arguments.length != arity) {
+                throw new RuntimeException("The function " + ast.getName() + "/" +
+                        arity + " was called with " + arguments.length + " arguments.");
+            }
+            return run(this, arguments);
+        }
+
+    }
+
+    private static final class Frame {
+
+        private Routine routine;
+        private Scope base;
+        private Scope scope;
+        private int pc;
+
+    }
+
+    /**
+     * Runs a routine to completion. The machine is reentrant: a builtin called
+     * from a running routine may invoke another routine, which runs on top of
+     * the existing frames and operands.
+     */
+    private Environment.PlcObject run(Routine routine, Environment.PlcObject[] arguments) {
+        int baseDepth = depth;
+        int baseSp = sp;
+        try {
+            for (Environment.PlcObject argument : arguments) {
+                push(argument);
+            }
+            enter(routine);
+            return execute(baseDepth);
+        } finally {
+            unwind(baseDepth, baseSp);
+        }
+    }
+
+    private void unwind(int baseDepth, int baseSp) {
+        for (int i = baseDepth; i < depth; i++) {
+            frames[i].routine = null;
+            frames[i].base = null;
+            frames[i].scope = null;
+        }
+        Arrays.fill(stack, baseSp, sp, null);
+        depth = baseDepth;
+        sp = baseSp;
+    }
+
+    /**
+     * Prepares a routine of this machine to run as a task, which executes in
+     * slices and is suspended between them (see {@link Task#resume(int)}). The
+     * machine runs one task at a time, but routines may still be invoked
+     * normally while the task is suspended.
+     */
+    public Task start(Environment.Invoker invoker, Environment.PlcObject... arguments) {
+        if (!(invoker instanceof Routine) || ((Routine) invoker).machine() != this) {
+            throw new IllegalArgumentException("Only routines defined on this machine can run as tasks.");
+        } else if (depth != 0) {
+            throw new IllegalStateException("The machine is already running a task.");
+        }
+        Routine routine = (Routine) invoker;
+        if (arguments.length != routine.arity) {
+            throw new RuntimeException("The function " + routine.ast.getName() + "/" +
+                    routine.arity + " was called with " + arguments.length + " arguments.");
+        }
+        try {
+            for (Environment.PlcObject argument : arguments) {
+                push(argument);
+            }
+            enter(routine);
+        } catch (RuntimeException e) {
+            unwind(0, 0);
+            throw e;
+        }
+        return new Task();
+    }
+
+    /**
+     * A routine running in slices. Loop back-edges and calls are safepoints:
+     * once a slice has reached its quantum of safepoints the task is suspended
+     * there, with its frames and operands left on the machine. Safepoints in
+     * routines invoked by a builtin do not suspend the task, since the builtin
+     * is on the Java stack; the task is suspended at its next safepoint after
+     * the builtin returns.
+     */
+    public final class Task {
+
+        private Environment.PlcObject result = null;
+
+        private Task() {}
+
+        /**
+         * Runs the task until it reaches {@code quantum} safepoints or
+         * finishes, returning true once it has finished. A task which threw
+         * has finished and cannot be resumed.
+         */
+        public boolean resume(int quantum) {
+            if (result != null) {
+                return true;
+            } else if (depth == 0) {
+                throw new IllegalStateException("The task has failed.");
+            }
+            Machine.this.quantum = quantum;
+            taskDepth = 0;
+            try {
+                result = execute(0);
+            } catch (RuntimeException | Error e) {
+                unwind(0, 0);
+                throw e;
+            } finally {
+                taskDepth = -1;
+            }
+            return result != null;
+        }
+
+        public boolean isDone() {
+            return result != null || depth == 0;
+        }
+
+        /**
+         * Returns the value the task returned, or null if it has not finished.
+         */
+        public Environment.PlcObject getResult() {
+            return result;
+        }
+
+    }
+
+    /**
+     * Pushes a frame for the routine, binding its arguments from the top of the
+     * operand stack.
+     */
+    private void enter(Routine routine) {
+        step();
+        if (depth == maxDepth) {
+            throw new RuntimeException("Stack overflow: the maximum call depth of " + maxDepth +
+                    " was exceeded calling " + routine.ast.getName() + ".");
+        }
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frame = new Frame();
+            frames[depth] = frame;
+        }
+        Scope scope = new Scope(routine.parent, routine.code().slots);
+        bind(scope, routine.arity);
+        frame.routine = routine;
+        frame.base = scope;
+        frame.scope = scope;
+        frame.pc = 0;
+        depth++;
+    }
+
+    /**
+     * Returns true if the task whose loop started at {@code baseDepth} should
+     * be suspended at this safepoint.
+     */
+    private boolean preempt(int baseDepth) {
+        return --quantum <= 0 && baseDepth == taskDepth;
+    }
+
+    /**
+     * Counts a loop iteration or call against the interpreter's meter.
+     */
+    private void step() {
+        Meter meter = interpreter.getMeter();
+        if (meter != null) {
+            meter.step();
+        }
+    }
+
+    private void account(Object value) {
+        Meter meter = interpreter.getMeter();
+        if (meter != null) {
+            meter.account(value);
+        }
+    }
+
+    private void bind(Scope scope, int arity) {
+        sp -= arity;
+        for (int i = 0; i < arity; i++) {
+            scope.bind(i, stack[sp + i]);
+            stack[sp + i] = null;
+        }
+    }
+
+    /**
+     * Executes the top frame until the frame at {@code baseDepth} returns,
+     * returning its value, or null if the running task was suspended.
+     */
+    private Environment.PlcObject execute(int baseDepth) {
+        Frame frame = frames[depth - 1];
+        int[] instructions = frame.routine.code.instructions;
+        Object[] constants = frame.routine.code.constants;
+        int pc = frame.pc;
+        while (true) {
+            int opcode = instructions[pc++];
+            switch (opcode) {
+                case CONST:
+                    push((Environment.PlcObject) constants[instructions[pc++]]);
+                    break;
+                case NIL:
+                    push(Environment.NIL);
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    break;
+                case DUP:
+                    push(stack[sp - 1]);
+                    break;
+                case LOAD:
+                    push(frame.scope.lookupVariable((String) constants[instructions[pc++]]).getValue());
+                    break;
+                case STORE:
+                    frame.scope.lookupVariable((String) constants[instructions[pc++]]).setValue(pop());
+                    break;
+                case LOAD_INDEX: {
+                    Environment.Variable variable = frame.scope.lookupVariable((String) constants[instructions[pc++]]);
+                    Environment.PlcObject offset = pop();
+                    Interpreter.requireType(BigInteger.class, offset);
+                    if (!(variable.getValue().getValue() instanceof List)) {
+                        throw new UnsupportedOperationException();
+                    }
+                    push(TypedList.load((List<?>) variable.getValue().getValue(), ((BigInteger) offset.getValue()).intValue()));
+                    break;
+                }
+                case STORE_INDEX: {
+                    Environment.PlcObject offset = pop();
+                    Environment.PlcObject value = pop();
+                    Environment.Variable variable = frame.scope.lookupVariable((String) constants[instructions[pc++]]);
+                    List<?> list = Interpreter.requireType(List.class, variable.getValue());
+                    TypedList.store(list, ((BigInteger) offset.getValue()).intValue(), value.getValue());
+                    break;
+                }
+                case DECLARE:
+                    frame.scope.defineVariable((String) constants[instructions[pc++]], true, pop());
+                    break;
+                case BINARY: {
+                    Environment.PlcObject right = pop();
+                    Environment.PlcObject left = pop();
+                    Environment.PlcObject result = ((Operator) constants[instructions[pc++]]).apply(left, right);
+                    account(result.getRawValue());
+                    push(result);
+                    break;
+                }
+                case AND: {
+                    int target = instructions[pc++];
+                    if (!(Boolean) stack[sp - 1].getValue()) {
+                        pc = target;
+                    } else {
+                        stack[--sp] = null;
+                    }
+                    break;
+                }
+                case OR: {
+                    int target = instructions[pc++];
+                    if ((Boolean) stack[sp - 1].getValue()) {
+                        pc = target;
+                    } else {
+                        stack[--sp] = null;
+                    }
+                    break;
+                }
+                case BOOLEAN:
+                    push(Environment.create((Boolean) pop().getValue()));
+                    break;
+                case JUMP: {
+                    int target = instructions[pc];
+                    if (target < pc) {
+                        step();
+                        if (preempt(baseDepth)) {
+                            frame.pc = target;
+                            return null;
+                        }
+                    }
+                    pc = target;
+                    break;
+                }
+                case JUMP_IF_FALSE: {
+                    int target = instructions[pc++];
+                    if (!Interpreter.requireType(Boolean.class, pop())) {
+                        pc = target;
+                    }
+                    break;
+                }
+                case JUMP_IF_NOT_EQUAL: {
+                    int target = instructions[pc++];
+                    Environment.PlcObject value = pop();
+                    Environment.PlcObject condition = pop();
+                    if (!condition.getValue().equals(value.getValue())) {
+                        pc = target;
+                    }
+                    break;
+                }
+                case SWITCH: {
+                    Environment.CaseTable table = (Environment.CaseTable) constants[instructions[pc++]];
+                    int[] targets = (int[]) constants[instructions[pc]];
+                    pc = targets[table.lookup(pop().getValue()) + 1];
+                    break;
+                }
+                case ENTER:
+                    frame.scope = new Scope(frame.scope, (String[]) constants[instructions[pc++]]);
+                    break;
+                case RESET:
+                    frame.scope.reset();
+                    break;
+                case EXIT:
+                    frame.scope = frame.scope.getParent();
+                    break;
+                case CALL:
+                case TAIL_CALL: {
+                    Ast.Expression.Function call = (Ast.Expression.Function) constants[instructions[pc++]];
+                    int arity = call.getArguments().size();
+                    Environment.Function function = interpreter.resolve(call, frame.scope);
+                    Environment.Invoker invoker = function.getInvoker();
+                    if (opcode == TAIL_CALL && invoker == frame.routine) {
+                        step();
+                        frame.base.reset();
+                        bind(frame.base, arity);
+                        frame.scope = frame.base;
+                        pc = 0;
+                        if (preempt(baseDepth)) {
+                            frame.pc = 0;
+                            return null;
+                        }
+                    } else if (invoker instanceof Routine && ((Routine) invoker).machine() == this) {
+                        frame.pc = pc;
+                        enter((Routine) invoker);
+                        frame = frames[depth - 1];
+                        instructions = frame.routine.code.instructions;
+                        constants = frame.routine.code.constants;
+                        pc = 0;
+                        if (preempt(baseDepth)) {
+                            return null;
+                        }
+                    } else {
+                        Environment.PlcObject[] arguments = new Environment.PlcObject[arity];
+                        sp -= arity;
+                        System.arraycopy(stack, sp, arguments, 0, arity);
+                        Arrays.fill(stack, sp, sp + arity, null);
+                        push(function.invoke(arguments));
+                    }
+                    break;
+                }
+                case RETURN: {
+                    Environment.PlcObject value = pop();
+                    depth--;
+                    frame.routine = null;
+                    frame.base = null;
+                    frame.scope = null;
+                    if (depth == baseDepth) {
+                        return value;
+                    }
+                    push(value);
+                    frame = frames[depth - 1];
+                    instructions = frame.routine.code.instructions;
+                    constants = frame.routine.code.constants;
+                    pc = frame.pc;
+                    break;
+                }
+                case LIST: {
+                    int size = instructions[pc++];
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = sp - size; i < sp; i++) {
+                        list.add(stack[i].getValue());
+                        stack[i] = null;
+                    }
+                    sp -= size;
+                    TypedList values = TypedList.of(list);
+                    account(values);
+                    push(Environment.create(values));
+                    break;
+                }
+                default:
+                    throw new AssertionError("Unknown opcode " + opcode + ".");
+            }
+        }
+    }
+
+    private void push(Environment.PlcObject value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Environment.PlcObject pop() {
+        Environment.PlcObject value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    /**
+     * Lowers statements and expressions into instructions. Jump targets are
+     * absolute instruction indices, patched once the target is known.
+     */
+    private static final class Compiler implements Ast.Visitor<Void> {
+
+        private int[] code = new int[64];
+        private int size = 0;
+        private final List<Object> constants = new ArrayList<>();
+
+        private int[] instructions() {
+            return Arrays.copyOf(code, size);
+        }
+
+        private void emit(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[size++] = value;
+        }
+
+        private void emit(int opcode, int operand) {
+            emit(opcode);
+            emit(operand);
+        }
+
+        private int constant(Object value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        /**
+         * Emits a jump with a placeholder target, returning the operand index
+         * to pass to {@link #patch(int)}.
+         */
+        private int jump(int opcode) {
+            emit(opcode, -1);
+            return size - 1;
+        }
+
+        private void patch(int operand) {
+            code[operand] = size;
+        }
+
+        /**
+         * Emits a block, entering a scope only if the block declares variables.
+         */
+        private void block(List<Ast.Statement> statements) {
+            String[] names = Interpreter.declarations(statements);
+            if (names.length == 0) {
+                statements.forEach(this::visit);
+            } else {
+                emit(ENTER, constant(names));
+                statements.forEach(this::visit);
+                emit(EXIT);
+            }
+        }
+
+        @Override
+        public Void visit(Ast.Source ast) {
+            throw new UnsupportedOperationException("Only function bodies are lowered.");
+        }
+
+        @Override
+        public Void visit(Ast.Global ast) {
+            throw new UnsupportedOperationException("Only function bodies are lowered.");
+        }
+
+        @Override
+        public Void visit(Ast.Function ast) {
+            throw new UnsupportedOperationException("Only function bodies are lowered.");
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Expression ast) {
+            visit(ast.getExpression());
+            emit(POP);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Declaration ast) {
+            if (ast.getValue().isPresent()) {
+                visit(ast.getValue().get());
+            } else {
+                emit(NIL);
+            }
+            emit(DECLARE, constant(ast.getName()));
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Assignment ast) {
+            Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+            visit(ast.getValue());
+            if (receiver.getOffset().isPresent()) {
+                visit(receiver.getOffset().get());
+                emit(STORE_INDEX, constant(receiver.getName()));
+            } else {
+                emit(STORE, constant(receiver.getName()));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.If ast) {
+            visit(ast.getCondition());
+            int otherwise = jump(JUMP_IF_FALSE);
+            block(ast.getThenStatements());
+            int end = jump(JUMP);
+            patch(otherwise);
+            block(ast.getElseStatements());
+            patch(end);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Switch ast) {
+            visit(ast.getCondition());
+            if (Environment.CaseTable.isConstant(ast.getCases())) {
+                if (ast.getCaseTable() == null) {
+                    ast.setCaseTable(Environment.CaseTable.of(ast.getCases()));
+                }
+                // targets[0] is taken when no case matches, targets[i + 1] selects case i
+                int[] targets = new int[ast.getCases().size() + 1];
+                emit(SWITCH, constant(ast.getCaseTable()));
+                emit(constant(targets));
+                List<Integer> ends = new ArrayList<>();
+                for (int i = 0; i < ast.getCases().size(); i++) {
+                    targets[i + 1] = size;
+                    block(ast.getCases().get(i).getStatements());
+                    ends.add(jump(JUMP));
+                }
+                targets[0] = size;
+                ends.forEach(this::patch);
+                return null;
+            }
+            List<Integer> ends = new ArrayList<>();
+            for (Ast.Statement.Case caseStatement : ast.getCases()) {
+                int next = -1;
+                if (caseStatement.getValue().isPresent()) {
+                    emit(DUP);
+                    visit(caseStatement.getValue().get());
+                    next = jump(JUMP_IF_NOT_EQUAL);
+                }
+                emit(POP);
+                block(caseStatement.getStatements());
+                ends.add(jump(JUMP));
+                if (next == -1) {
+                    break;
+                }
+                patch(next);
+            }
+            emit(POP);
+            ends.forEach(this::patch);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Case ast) {
+            block(ast.getStatements());
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.While ast) {
+            String[] names = Interpreter.declarations(ast.getStatements());
+            if (names.length == 0) {
+                int start = size;
+                visit(ast.getCondition());
+                int end = jump(JUMP_IF_FALSE);
+                ast.getStatements().forEach(this::visit);
+                emit(JUMP, start);
+                patch(end);
+                return null;
+            }
+            // one scope is entered for the whole loop and reset by every iteration
+            emit(ENTER, constant(names));
+            int start = size;
+            emit(RESET);
+            visit(ast.getCondition());
+            int end = jump(JUMP_IF_FALSE);
+            ast.getStatements().forEach(this::visit);
+            emit(JUMP, start);
+            patch(end);
+            emit(EXIT);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Statement.Return ast) {
+            if (ast.isTailCall()) {
+                Ast.Expression.Function call = (Ast.Expression.Function) ast.getValue();
+                call.getArguments().forEach(this::visit);
+                emit(TAIL_CALL, constant(call));
+            } else {
+                visit(ast.getValue());
+            }
+            emit(RETURN);
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Literal ast) {
+            if (ast.getLiteral() == null) {
+                emit(NIL);
+            } else {
+                emit(CONST, constant(Environment.create(ast.getLiteral())));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Group ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Binary ast) {
+            visit(ast.getLeft());
+            if (ast.getOperator().equals("&&") || ast.getOperator().equals("||")) {
+                int end = jump(ast.getOperator().equals("&&") ? AND : OR);
+                visit(ast.getRight());
+                emit(BOOLEAN);
+                patch(end);
+            } else {
+                visit(ast.getRight());
+                emit(BINARY, constant(Operator.of(ast.getOperator())));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Access ast) {
+            if (ast.getOffset().isPresent()) {
+                visit(ast.getOffset().get());
+                emit(LOAD_INDEX, constant(ast.getName()));
+            } else {
+                emit(LOAD, constant(ast.getName()));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.Function ast) {
+            ast.getArguments().forEach(this::visit);
+            emit(CALL, constant(ast));
+            return null;
+        }
+
+        @Override
+        public Void visit(Ast.Expression.PlcList ast) {
+            ast.getValues().forEach(this::visit);
+            emit(LIST, ast.getValues().size());
+            return null;
+        }
+
+    }
+
+}
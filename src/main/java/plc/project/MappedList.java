@@ -0,0 +1,198 @@
+package plc.project;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A fixed size list of PLC values of one type stored outside the Java heap,
+ * either in direct memory or in a memory mapped file. Integers are stored as
+ * 8 byte longs, decimals as 8 byte doubles, characters as 2 byte chars and
+ * booleans as single bytes, all little endian.
+ *
+ * Storage is split into segments of at most 1 GiB, since a single buffer is
+ * indexed by an int. Values that cannot be stored exactly (integers outside
+ * the range of a long, decimals that do not round-trip through a double or
+ * values of another type) are rejected.
+ *
+ * Embedders map files with {@link #map(Path, Environment.Type, int)}. Scripts
+ * can only call {@code mapList(path, type, size)} once the embedder allows it
+ * with {@link Interpreter#setMappedRoot}, and {@code flush(list)} writes
+ * changes back to the file.
+ */
+public final class MappedList extends AbstractList<Object> implements RandomAccess {
+
+    private static final int SEGMENT_SHIFT = 30;
+
+    private final Environment.Type type;
+    private final int size;
+    private final int shift;
+    private final int mask;
+    private final ByteBuffer[] segments;
+
+    private MappedList(Environment.Type type, int size, ByteBuffer[] segments) {
+        this.type = type;
+        this.size = size;
+        this.shift = SEGMENT_SHIFT - Integer.numberOfTrailingZeros(width(type));
+        this.mask = (1 << shift) - 1;
+        this.segments = segments;
+    }
+
+    private static int width(Environment.Type type) {
+        if (type == Environment.Type.INTEGER || type == Environment.Type.DECIMAL) {
+            return 8;
+        } else if (type == Environment.Type.CHARACTER) {
+            return 2;
+        } else if (type == Environment.Type.BOOLEAN) {
+            return 1;
+        }
+        throw new RuntimeException("Lists of type " + type.getName() + " cannot be stored off the heap.");
+    }
+
+    private static int segmentCount(Environment.Type type, int size) {
+        long bytes = (long) size * width(type);
+        return (int) ((bytes + (1L << SEGMENT_SHIFT) - 1) >> SEGMENT_SHIFT);
+    }
+
+    private static long segmentBytes(Environment.Type type, int size, int segment) {
+        long bytes = (long) size * width(type);
+        return Math.min(1L << SEGMENT_SHIFT, bytes - ((long) segment << SEGMENT_SHIFT));
+    }
+
+    /**
+     * Allocates a list in direct memory, initialized to zero values.
+     */
+    public static MappedList allocate(Environment.Type type, int size) {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount(type, size)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect((int) segmentBytes(type, size, i)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new MappedList(type, size, segments);
+    }
+
+    /**
+     * Maps a list onto a file, creating or growing the file so it holds
+     * {@code size} elements. Existing contents are used as they are.
+     */
+    public static MappedList map(Path path, Environment.Type type, int size) {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount(type, size)];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentBytes(type, size, i)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to map " + path + ": " + e.getMessage(), e);
+        }
+        return new MappedList(type, size, segments);
+    }
+
+    public static MappedList map(String path, String typeName, int size) {
+        return map(Paths.get(path), Environment.getType(typeName), size);
+    }
+
+    /**
+     * Flushes a list if it is mapped onto a file, doing nothing otherwise.
+     */
+    public static void flush(Object list) {
+        if (list instanceof MappedList) {
+            ((MappedList) list).flush();
+        }
+    }
+
+    /**
+     * Writes changes made to a mapped list back to its file.
+     */
+    public void flush() {
+        for (ByteBuffer segment : segments) {
+            if (segment instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+    public Environment.Type getElementType() {
+        return type;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private ByteBuffer segment(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return segments[index >>> shift];
+    }
+
+    private int position(int index) {
+        return (index & mask) << (SEGMENT_SHIFT - shift);
+    }
+
+    @Override
+    public Object get(int index) {
+        ByteBuffer segment = segment(index);
+        if (type == Environment.Type.INTEGER) {
+            return BigInteger.valueOf(segment.getLong(position(index)));
+        } else if (type == Environment.Type.DECIMAL) {
+            return BigDecimal.valueOf(segment.getDouble(position(index)));
+        } else if (type == Environment.Type.CHARACTER) {
+            return segment.getChar(position(index));
+        }
+        return segment.get(position(index)) != 0;
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        Object previous = get(index);
+        store(index, value);
+        return previous;
+    }
+
+    /**
+     * Returns the element at the index as an object, see
+     * {@link TypedList#load(int)}.
+     */
+    public Environment.PlcObject load(int index) {
+        ByteBuffer segment = segment(index);
+        if (type == Environment.Type.INTEGER) {
+            return Environment.integer(segment.getLong(position(index)));
+        } else if (type == Environment.Type.CHARACTER) {
+            return Environment.create(segment.getChar(position(index)));
+        } else if (type == Environment.Type.BOOLEAN) {
+            return segment.get(position(index)) != 0 ? Environment.TRUE : Environment.FALSE;
+        }
+        return Environment.create(get(index));
+    }
+
+    /**
+     * Replaces the element at the index without returning the previous one.
+     */
+    public void store(int index, Object value) {
+        ByteBuffer segment = segment(index);
+        if (type == Environment.Type.INTEGER && value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            segment.putLong(position(index), ((BigInteger) value).longValue());
+        } else if (type == Environment.Type.DECIMAL && value instanceof BigDecimal
+                && BigDecimal.valueOf(((BigDecimal) value).doubleValue()).equals(value)) {
+            segment.putDouble(position(index), ((BigDecimal) value).doubleValue());
+        } else if (type == Environment.Type.CHARACTER && value instanceof Character) {
+            segment.putChar(position(index), (Character) value);
+        } else if (type == Environment.Type.BOOLEAN && value instanceof Boolean) {
+            segment.put(position(index), (byte) ((Boolean) value ? 1 : 0));
+        } else {
+            throw new RuntimeException("The value " + value + " cannot be stored exactly in a list of type " + type.getName() + ".");
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Limits the resources a program may use. The interpreter and the stackless
+ * machine call {@link #step()} at every loop iteration and function call,
+ * and execution is aborted with a {@link RuntimeException} once the step
+ * budget is used up, the deadline has passed or the running thread has been
+ * interrupted.
+ *
+ * A step only decrements a counter. The clock and the interrupt flag are read
+ * once every {@value #CHECK_INTERVAL} steps, so a deadline or interrupt is
+ * noticed within that many steps.
+ *
+ * A meter also accounts the approximate number of bytes allocated for
+ * strings, lists and numbers, aborting once they exceed its quota. Nothing is
+ * known about when values become garbage, so the quota limits the total
+ * allocated by a run; {@link #getLargest()} reports the largest single value.
+ */
+public final class Meter {
+
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final long budget;
+    private final long deadline;
+    private final boolean timed;
+    private final long quota;
+    private long used = 0;
+    private int granted = 0;
+    private int countdown = 0;
+    private long allocated = 0;
+    private long largest = 0;
+
+    /**
+     * Creates a meter allowing {@code budget} steps, or any number of steps if
+     * the budget is {@link Long#MAX_VALUE}, and running until {@code timeout}
+     * after its creation, or without a deadline if the timeout is null.
+     */
+    public Meter(long budget, Duration timeout) {
+        this(budget, timeout, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a meter which also allows {@code quota} bytes to be allocated,
+     * or any number if the quota is {@link Long#MAX_VALUE}.
+     */
+    public Meter(long budget, Duration timeout, long quota) {
+        if (budget < 0 || quota < 0) {
+            throw new IllegalArgumentException("The budget and quota must not be negative.");
+        }
+        this.budget = budget;
+        this.timed = timeout != null;
+        this.deadline = timed ? System.nanoTime() + timeout.toNanos() : 0;
+        this.quota = quota;
+    }
+
+    public static Meter budget(long budget) {
+        return new Meter(budget, null);
+    }
+
+    public static Meter timeout(Duration timeout) {
+        return new Meter(Long.MAX_VALUE, timeout);
+    }
+
+    public static Meter quota(long quota) {
+        return new Meter(Long.MAX_VALUE, null, quota);
+    }
+
+    /**
+     * Returns the number of steps taken so far.
+     */
+    public long getUsed() {
+        return used + granted - countdown;
+    }
+
+    /**
+     * Returns the approximate number of bytes allocated so far.
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Returns the approximate size in bytes of the largest value created so
+     * far, a lower bound on the memory the run needed at once.
+     */
+    public long getLargest() {
+        return largest;
+    }
+
+    /**
+     * Accounts {@code bytes} newly allocated to create a value of
+     * {@code size} bytes. They differ when the value shares most of its
+     * storage, such as a rope that was appended to in place.
+     */
+    public void allocate(long bytes, long size) {
+        allocated += bytes;
+        largest = Math.max(largest, size);
+        if (allocated > quota) {
+            throw new RuntimeException("Execution aborted: the memory quota of " + quota + " bytes was exceeded.");
+        }
+    }
+
+    /**
+     * Accounts a value created by an operation. A rope only accounts for what
+     * it allocated, since it may share its buffer with the rope it extends.
+     */
+    public void account(Object value) {
+        long size = sizeOf(value);
+        if (size > 0) {
+            allocate(value instanceof Rope ? ((Rope) value).getAllocated() : size, size);
+        }
+    }
+
+    /**
+     * Estimates the number of bytes a value occupies, counting strings at two
+     * bytes per character and typed lists at their element width. Canonical
+     * values are shared rather than allocated, so they count as nothing.
+     */
+    public static long sizeOf(Object value) {
+        if (Environment.isCanonical(value)) {
+            return 0;
+        } else if (value instanceof CharSequence) {
+            return 24 + 2L * ((CharSequence) value).length();
+        } else if (value instanceof BigInteger) {
+            return 40 + ((BigInteger) value).bitLength() / 8;
+        } else if (value instanceof BigDecimal) {
+            return 72 + ((BigDecimal) value).precision() / 2;
+        } else if (value instanceof TypedList) {
+            return 32 + (long) width(((TypedList) value).getElementType()) * ((TypedList) value).size();
+        } else if (value instanceof MappedList) {
+            return 32 + (long) width(((MappedList) value).getElementType()) * ((MappedList) value).size();
+        } else if (value instanceof List) {
+            return 32 + 4L * ((List<?>) value).size();
+        }
+        return 0;
+    }
+
+    private static int width(Environment.Type type) {
+        return type == Environment.Type.INTEGER || type == Environment.Type.DECIMAL ? 8
+                : type == Environment.Type.CHARACTER ? 2 : type == Environment.Type.BOOLEAN ? 1 : 4;
+    }
+
+    public void step() {
+        if (--countdown < 0) {
+            refill();
+        }
+    }
+
+    private void refill() {
+        used += granted;
+        granted = 0;
+        countdown = 0;
+        if (used >= budget) {
+            throw new RuntimeException("Execution aborted: the budget of " + budget + " steps was exceeded.");
+        } else if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Execution aborted: the thread was interrupted.");
+        } else if (timed && System.nanoTime() - deadline > 0) {
+            throw new RuntimeException("Execution aborted: the deadline was exceeded.");
+        }
+        granted = (int) Math.min(CHECK_INTERVAL, budget - used);
+        countdown = granted - 1;
+    }
+
+}
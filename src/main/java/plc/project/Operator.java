@@ -0,0 +1,165 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * The binary operators of the language. Each operator dispatches on the kinds
+ * of its (already evaluated) operands through a table, so the interpreter and
+ * the machine evaluate both operands exactly once and share one set of rules.
+ * Concatenation is handled separately and builds a {@link Rope}, so appending
+ * to a string repeatedly takes linear time.
+ */
+public enum Operator {
+
+    AND("&&"),
+    OR("||"),
+    LESS("<"),
+    GREATER(">"),
+    EQUAL("=="),
+    NOT_EQUAL("!="),
+    ADD("+"),
+    SUBTRACT("-"),
+    MULTIPLY("*"),
+    DIVIDE("/"),
+    POWER("^");
+
+    private static final int INTEGER = 0;
+    private static final int DECIMAL = 1;
+    private static final int STRING = 2;
+    private static final int CHARACTER = 3;
+    private static final int BOOLEAN = 4;
+    private static final int OTHER = 5;
+    private static final int KINDS = 6;
+
+    @FunctionalInterface
+    private interface Kernel {
+        Environment.PlcObject apply(Object left, Object right);
+    }
+
+    private final String symbol;
+    private final Kernel[] table = new Kernel[KINDS * KINDS];
+
+    Operator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    static {
+        for (int kind : new int[] {INTEGER, DECIMAL, STRING, CHARACTER, BOOLEAN}) {
+            LESS.define(kind, kind, (l, r) -> Environment.create(compare(l, r) < 0));
+            GREATER.define(kind, kind, (l, r) -> Environment.create(compare(l, r) > 0));
+        }
+        for (int left = 0; left < KINDS; left++) {
+            for (int right = 0; right < KINDS; right++) {
+                EQUAL.define(left, right, (l, r) -> Environment.create(equal(l, r)));
+                NOT_EQUAL.define(left, right, (l, r) -> Environment.create(!equal(l, r)));
+            }
+        }
+        ADD.define(INTEGER, INTEGER, (l, r) -> Environment.create(((BigInteger) l).add((BigInteger) r)));
+        ADD.define(DECIMAL, DECIMAL, (l, r) -> Environment.create(((BigDecimal) l).add((BigDecimal) r)));
+        SUBTRACT.define(INTEGER, INTEGER, (l, r) -> Environment.create(((BigInteger) l).subtract((BigInteger) r)));
+        SUBTRACT.define(DECIMAL, DECIMAL, (l, r) -> Environment.create(((BigDecimal) l).subtract((BigDecimal) r)));
+        MULTIPLY.define(INTEGER, INTEGER, (l, r) -> Environment.create(((BigInteger) l).multiply((BigInteger) r)));
+        MULTIPLY.define(DECIMAL, DECIMAL, (l, r) -> Environment.create(((BigDecimal) l).multiply((BigDecimal) r)));
+        DIVIDE.define(INTEGER, INTEGER, (l, r) -> Environment.create(((BigInteger) l).divide((BigInteger) r)));
+        DIVIDE.define(DECIMAL, DECIMAL, (l, r) -> Environment.create(((BigDecimal) l).divide((BigDecimal) r, RoundingMode.HALF_EVEN)));
+        POWER.define(INTEGER, INTEGER, (l, r) -> Environment.create(((BigInteger) l).pow(((BigInteger) r).intValueExact())));
+    }
+
+    private void define(int left, int right, Kernel kernel) {
+        table[left * KINDS + right] = kernel;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Returns true if the right operand is only evaluated depending on the
+     * left operand, which callers must handle before calling {@link #apply}.
+     */
+    public boolean isShortCircuit() {
+        return this == AND || this == OR;
+    }
+
+    public static Operator of(String symbol) {
+        switch (symbol) {
+            case "&&": return AND;
+            case "||": return OR;
+            case "<": return LESS;
+            case ">": return GREATER;
+            case "==": return EQUAL;
+            case "!=": return NOT_EQUAL;
+            case "+": return ADD;
+            case "-": return SUBTRACT;
+            case "*": return MULTIPLY;
+            case "/": return DIVIDE;
+            case "^": return POWER;
+            default: throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Applies this operator to two evaluated operands.
+     */
+    public Environment.PlcObject apply(Environment.PlcObject left, Environment.PlcObject right) {
+        if (this == ADD && (isText(left.getRawValue()) || isText(right.getRawValue()))) {
+            return Environment.create(Rope.concat(left.getRawValue(), right.getRawValue()));
+        }
+        Object l = left.getValue();
+        Object r = right.getValue();
+        if (isShortCircuit()) {
+            return Environment.create(this == AND ? (Boolean) l && (Boolean) r : (Boolean) l || (Boolean) r);
+        }
+        Kernel kernel = table[kind(l) * KINDS + kind(r)];
+        if (kernel == null) {
+            throw mismatch(l, r);
+        }
+        return kernel.apply(l, r);
+    }
+
+    private RuntimeException mismatch(Object left, Object right) {
+        if (this == POWER) {
+            if (left instanceof BigDecimal || right instanceof BigDecimal) {
+                return new RuntimeException("Can't use ^ operator with decimals");
+            }
+            return new UnsupportedOperationException();
+        }
+        return new RuntimeException("Mismatched Types " + symbol);
+    }
+
+    private static int kind(Object value) {
+        if (value instanceof BigInteger) {
+            return INTEGER;
+        } else if (value instanceof BigDecimal) {
+            return DECIMAL;
+        } else if (value instanceof String) {
+            return STRING;
+        } else if (value instanceof Character) {
+            return CHARACTER;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return OTHER;
+    }
+
+    private static boolean isText(Object value) {
+        return value instanceof CharSequence;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object left, Object right) {
+        return ((Comparable) left).compareTo(right);
+    }
+
+    private static boolean equal(Object left, Object right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    @Override
+    public String toString() {
+        return symbol;
+    }
+
+}
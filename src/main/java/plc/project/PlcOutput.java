@@ -0,0 +1,149 @@
+package plc.project;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sink the {@code print} builtin writes to. The default sink writes each
+ * line straight to {@link System#out}; {@link #buffered} and {@link #capture}
+ * trade that for throughput and isolation respectively.
+ */
+public abstract class PlcOutput implements AutoCloseable {
+
+    public abstract void println(Object value);
+
+    /**
+     * Writes any buffered output.
+     */
+    public void flush() {}
+
+    /**
+     * Flushes the sink and releases any resources it holds.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Returns a sink that prints each line to the current {@link System#out}.
+     */
+    public static PlcOutput system() {
+        return SYSTEM;
+    }
+
+    /**
+     * Returns a sink that buffers up to {@code capacity} characters before
+     * writing them to the stream, encoded as UTF-8.
+     */
+    public static Buffered buffered(OutputStream out, int capacity) {
+        return new Buffered(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), capacity));
+    }
+
+    /**
+     * Returns a sink that keeps everything printed in memory.
+     */
+    public static Capture capture() {
+        return new Capture();
+    }
+
+    private static final PlcOutput SYSTEM = new PlcOutput() {
+
+        @Override
+        public void println(Object value) {
+            System.out.println(value);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+
+    };
+
+    public static final class Buffered extends PlcOutput {
+
+        private final Writer writer;
+        private ScheduledExecutorService flusher = null;
+
+        private Buffered(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void println(Object value) {
+            try {
+                writer.write(String.valueOf(value));
+                writer.write(System.lineSeparator());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Flushes the buffer from a background thread every {@code millis}
+         * milliseconds until the sink is closed.
+         */
+        public synchronized Buffered flushEvery(long millis) {
+            if (flusher == null) {
+                flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "plc-output-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                flusher.scheduleAtFixedRate(this::flush, millis, millis, TimeUnit.MILLISECONDS);
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (flusher != null) {
+                    flusher.shutdownNow();
+                    flusher = null;
+                }
+            }
+            flush();
+        }
+
+    }
+
+    public static final class Capture extends PlcOutput {
+
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized void println(Object value) {
+            text.append(value).append(System.lineSeparator());
+        }
+
+        public synchronized String getText() {
+            return text.toString();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return text.toString();
+        }
+
+    }
+
+}
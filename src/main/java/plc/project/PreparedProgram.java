@@ -0,0 +1,235 @@
+package plc.project;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A program that has been lexed, parsed, optionally analyzed and lowered to
+ * {@link Machine} code once, and can then be executed any number of times.
+ *
+ * A prepared program is immutable and may be cached and executed by several
+ * threads at once. Each execution creates only its own interpreter, globals
+ * and frames; the AST and the lowered code are shared.
+ *
+ * A program prepared lazily only analyzes its globals and function
+ * signatures up front. Each function body is analyzed and lowered when the
+ * function is first called by any execution, so errors in functions which
+ * are never called are not reported; preparing eagerly checks everything.
+ */
+public final class PreparedProgram {
+
+    private static final int MAX_DEPTH = 100_000;
+
+    private final Ast.Source ast;
+    private final Lowering[] functions;
+    private final Set<String> globals;
+    private final boolean lazyGlobals;
+
+    private PreparedProgram(Ast.Source ast, boolean lazy, Analyzer analyzer) {
+        this.ast = ast;
+        this.functions = new Lowering[ast.getFunctions().size()];
+        for (int i = 0; i < functions.length; i++) {
+            Ast.Function function = ast.getFunctions().get(i);
+            functions[i] = new Lowering(function, analyzer, lazy ? null : Machine.compile(function));
+        }
+        Set<String> globals = new LinkedHashSet<>();
+        ast.getGlobals().forEach(global -> globals.add(global.getName()));
+        this.globals = Collections.unmodifiableSet(globals);
+        this.lazyGlobals = false;
+    }
+
+    private PreparedProgram(PreparedProgram program, boolean lazyGlobals) {
+        this.ast = program.ast;
+        this.functions = program.functions;
+        this.globals = program.globals;
+        this.lazyGlobals = lazyGlobals;
+    }
+
+    /**
+     * Lexes, parses and lowers a program.
+     */
+    public static PreparedProgram prepare(String source) {
+        return prepare(new Parser(new Lexer(source).lex()).parseSource(), false);
+    }
+
+    /**
+     * Lowers a parsed program, running the {@link Analyzer} on it first if
+     * {@code analyze} is true.
+     */
+    public static PreparedProgram prepare(Ast.Source ast, boolean analyze) {
+        if (analyze) {
+            new Analyzer(new Scope(null)).visit(ast);
+        }
+        return new PreparedProgram(ast, false, null);
+    }
+
+    /**
+     * Prepares a parsed program lazily. If {@code analyze} is true, the
+     * globals and signatures are analyzed now and each function body before
+     * its first call.
+     */
+    public static PreparedProgram prepareLazily(Ast.Source ast, boolean analyze) {
+        Analyzer analyzer = null;
+        if (analyze) {
+            analyzer = new Analyzer(new Scope(null));
+            analyzer.declare(ast);
+        }
+        return new PreparedProgram(ast, true, analyzer);
+    }
+
+    /**
+     * Returns this program with globals initialized on first read (see
+     * {@link Interpreter#setLazyGlobals(boolean)}), sharing its lowered code.
+     */
+    public PreparedProgram withLazyGlobals(boolean lazyGlobals) {
+        return lazyGlobals == this.lazyGlobals ? this : new PreparedProgram(this, lazyGlobals);
+    }
+
+    public boolean isLazyGlobals() {
+        return lazyGlobals;
+    }
+
+    public Ast.Source getAst() {
+        return ast;
+    }
+
+    /**
+     * Returns the names of the globals, which are the inputs of the program.
+     */
+    public Set<String> getGlobals() {
+        return globals;
+    }
+
+    public Environment.PlcObject execute(Map<String, ?> inputs) {
+        return execute(inputs, PlcOutput.system(), null);
+    }
+
+    /**
+     * Runs {@code main/0} with fresh globals. A global named in the inputs is
+     * initialized to the given value (a raw value or an object) instead of
+     * evaluating its initializer. Lists in the inputs are copied for each
+     * execution, so its stores are not seen by the inputs or by other
+     * executions; only lists mapped onto files are shared.
+     */
+    public Environment.PlcObject execute(Map<String, ?> inputs, PlcOutput output, Meter meter) {
+        return instantiate(inputs, output, meter).main();
+    }
+
+    /**
+     * Initializes fresh globals as {@link #execute} does, then returns
+     * {@code main/0} as a task to be run in slices, see {@link Scheduler}.
+     */
+    public Machine.Task start(Map<String, ?> inputs, PlcOutput output, Meter meter) {
+        Interpreter interpreter = instantiate(inputs, output, meter);
+        return interpreter.getMachine().start(interpreter.getScope().lookupFunction("main", 0).getInvoker());
+    }
+
+    /**
+     * Initializes fresh globals as {@link #execute} does and writes them to a
+     * checkpoint. Executing the program with the values read back from it
+     * runs none of the initializers.
+     */
+    public void checkpoint(Map<String, ?> inputs, PlcOutput output, Path path) {
+        Interpreter interpreter = instantiate(inputs, output, null);
+        output.flush();
+        Checkpoint.write(path, interpreter.getScope(), globals);
+    }
+
+    private Interpreter instantiate(Map<String, ?> inputs, PlcOutput output, Meter meter) {
+        for (String name : inputs.keySet()) {
+            if (!globals.contains(name)) {
+                throw new RuntimeException("The input " + name + " is not a global of the program.");
+            }
+        }
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setStackless(MAX_DEPTH);
+        interpreter.setOutput(output);
+        interpreter.setMeter(meter);
+        interpreter.setLazyGlobals(lazyGlobals);
+        Map<Object, Object> copies = new IdentityHashMap<>();
+        for (Ast.Global global : ast.getGlobals()) {
+            if (inputs.containsKey(global.getName())) {
+                Object value = inputs.get(global.getName());
+                Object raw = value instanceof Environment.PlcObject ? ((Environment.PlcObject) value).getRawValue() : value;
+                Object copy = copy(raw, copies);
+                interpreter.getScope().defineVariable(global.getName(), global.getMutable(),
+                        copy == raw && value instanceof Environment.PlcObject ? (Environment.PlcObject) value : Environment.create(copy));
+            } else {
+                interpreter.visit(global);
+            }
+        }
+        for (Lowering function : functions) {
+            interpreter.define(function.ast, function);
+        }
+        return interpreter;
+    }
+
+    /**
+     * Copies a list and the lists nested in it. A list reached several times
+     * is copied once, so aliasing between the inputs is kept.
+     */
+    private static Object copy(Object value, Map<Object, Object> copies) {
+        if (!(value instanceof List) || value instanceof MappedList) {
+            return value;
+        }
+        Object existing = copies.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        TypedList copy = value instanceof TypedList ? ((TypedList) value).copy() : TypedList.of((List<?>) value);
+        copies.put(value, copy);
+        if (copy.array() instanceof Object[]) {
+            for (int i = 0; i < copy.size(); i++) {
+                Object element = copy.get(i);
+                if (element instanceof List) {
+                    copy.set(i, copy(element, copies));
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * The code of a function, lowered (and analyzed, if an analyzer is given)
+     * by the first execution to call it. Other executions calling it at the
+     * same time wait for that to finish.
+     */
+    private static final class Lowering implements Supplier<Machine.Code> {
+
+        private final Ast.Function ast;
+        private final Analyzer analyzer;
+        private volatile Machine.Code code;
+
+        private Lowering(Ast.Function ast, Analyzer analyzer, Machine.Code code) {
+            this.ast = ast;
+            this.analyzer = analyzer;
+            this.code = code;
+        }
+
+        @Override
+        public Machine.Code get() {
+            Machine.Code code = this.code;
+            if (code == null) {
+                synchronized (this) {
+                    code = this.code;
+                    if (code == null) {
+                        if (analyzer != null) {
+                            analyzer.analyze(ast);
+                        }
+                        code = Machine.compile(ast);
+                        this.code = code;
+                    }
+                }
+            }
+            return code;
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package plc.project;
+
+/**
+ * A string built by concatenation, flattened into a {@link String} only when
+ * its contents are needed.
+ *
+ * Ropes share a buffer with the rope they were appended to. Appending to the
+ * rope which ends at the end of the buffer extends the buffer in place, so a
+ * loop that keeps appending to an accumulator runs in linear time. Every rope
+ * only ever reads its own prefix of the buffer, so earlier ropes are not
+ * affected; appending to any other rope copies it first.
+ */
+public final class Rope implements CharSequence {
+
+    private final StringBuilder buffer;
+    private final int length;
+    private final long allocated;
+    private String flat = null;
+
+    private Rope(StringBuilder buffer, int length, long allocated) {
+        this.buffer = buffer;
+        this.length = length;
+        this.allocated = allocated;
+    }
+
+    /**
+     * Concatenates the string forms of two values.
+     */
+    public static Rope concat(Object left, Object right) {
+        String text = String.valueOf(right);
+        if (left instanceof Rope) {
+            return ((Rope) left).append(text);
+        }
+        String prefix = String.valueOf(left);
+        StringBuilder buffer = new StringBuilder(prefix.length() + text.length() + 16);
+        buffer.append(prefix).append(text);
+        return new Rope(buffer, buffer.length(), 2L * buffer.capacity());
+    }
+
+    public Rope append(CharSequence text) {
+        if (text instanceof Rope) {
+            text = text.toString();
+        }
+        StringBuilder copy;
+        synchronized (buffer) {
+            if (buffer.length() == length) {
+                int capacity = buffer.capacity();
+                buffer.append(text);
+                // growing the buffer copies it into a new array
+                long allocated = buffer.capacity() == capacity ? 2L * text.length() : 2L * buffer.capacity();
+                return new Rope(buffer, buffer.length(), allocated);
+            }
+            copy = new StringBuilder((length + text.length()) * 2);
+            copy.append(buffer, 0, length);
+        }
+        copy.append(text);
+        return new Rope(copy, copy.length(), 2L * copy.capacity());
+    }
+
+    /**
+     * Returns the approximate number of bytes allocated to create this rope:
+     * the appended text if it fit into the shared buffer, or the whole new
+     * buffer if one had to be allocated.
+     */
+    long getAllocated() {
+        return allocated;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        synchronized (buffer) {
+            return buffer.charAt(index);
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Returns the contents as a string, flattening the rope the first time.
+     */
+    @Override
+    public String toString() {
+        if (flat == null) {
+            synchronized (buffer) {
+                flat = buffer.substring(0, length);
+            }
+        }
+        return flat;
+    }
+
+}
@@ -0,0 +1,188 @@
+package plc.project;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multiplexes many long running scripts over a few carrier threads. Each
+ * script runs as a {@link Machine.Task} for a slice of {@code quantum}
+ * safepoints (loop iterations and calls) at a time, and is then suspended and
+ * queued again, so a script never holds a carrier for longer than a slice.
+ *
+ * Scheduling is fair by virtual runtime: the script that has received the
+ * least CPU time, divided by its priority, runs next. A script of priority 2
+ * therefore receives twice the CPU time of a script of priority 1 while both
+ * are runnable. New scripts start at the virtual runtime of the scripts
+ * already running, so they neither starve nor are starved by them.
+ */
+public final class Scheduler implements AutoCloseable {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int quantum;
+    private final PriorityBlockingQueue<Script> ready = new PriorityBlockingQueue<>();
+    private final Thread[] carriers;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long clock = 0;
+    private volatile boolean closed = false;
+
+    public Scheduler(int carriers, int quantum) {
+        if (carriers < 1 || quantum < 1) {
+            throw new IllegalArgumentException("The number of carriers and the quantum must be positive.");
+        }
+        this.quantum = quantum;
+        this.carriers = new Thread[carriers];
+        for (int i = 0; i < carriers; i++) {
+            this.carriers[i] = new Thread(this::carry, "plc-carrier-" + (i + 1));
+            this.carriers[i].setDaemon(true);
+            this.carriers[i].start();
+        }
+    }
+
+    /**
+     * Schedules an execution of the program. Its globals are initialized by a
+     * carrier, as part of the script's first slice.
+     */
+    public Script submit(PreparedProgram program, Map<String, ?> inputs, int priority, PlcOutput output) {
+        if (priority < 1) {
+            throw new IllegalArgumentException("The priority must be positive.");
+        } else if (closed) {
+            throw new IllegalStateException("The scheduler is closed.");
+        }
+        Script script = new Script(program, inputs, priority, output);
+        ready.add(script);
+        return script;
+    }
+
+    private void carry() {
+        while (!closed) {
+            Script script;
+            try {
+                script = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            clock = Math.max(clock, script.runtime);
+            if (script.run()) {
+                script.sequence = sequence.incrementAndGet();
+                ready.add(script);
+            }
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Stops the carriers once their current slices end. Scripts which have
+     * not finished are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread carrier : carriers) {
+            carrier.interrupt();
+        }
+        for (Thread carrier : carriers) {
+            try {
+                carrier.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Script script;
+        while ((script = ready.poll()) != null) {
+            script.result.cancel(false);
+        }
+    }
+
+    public final class Script implements Comparable<Script> {
+
+        private final PreparedProgram program;
+        private final Map<String, ?> inputs;
+        private final int priority;
+        private final PlcOutput output;
+        private final CompletableFuture<Environment.PlcObject> result = new CompletableFuture<>();
+        private Machine.Task task = null;
+        private long runtime = clock;
+        private long sequence = Scheduler.this.sequence.incrementAndGet();
+        private volatile long cpuTime = 0;
+        private volatile long slices = 0;
+
+        private Script(PreparedProgram program, Map<String, ?> inputs, int priority, PlcOutput output) {
+            this.program = program;
+            this.inputs = inputs;
+            this.priority = priority;
+            this.output = output;
+        }
+
+        /**
+         * Runs one slice, returning true if the script should be queued
+         * again.
+         */
+        private boolean run() {
+            if (result.isDone()) {
+                return false;
+            }
+            long start = cpuTime();
+            try {
+                if (task == null) {
+                    task = program.start(inputs, output, null);
+                }
+                if (task.resume(quantum)) {
+                    output.flush();
+                    result.complete(task.getResult());
+                }
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            } finally {
+                long elapsed = cpuTime() - start;
+                cpuTime += elapsed;
+                slices++;
+                runtime += elapsed / priority;
+            }
+            return !result.isDone();
+        }
+
+        public CompletableFuture<Environment.PlcObject> getResult() {
+            return result;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the CPU time in nanoseconds the script has used so far, or
+         * the wall clock time if the JVM does not measure thread CPU time.
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        public long getSlices() {
+            return slices;
+        }
+
+        /**
+         * Stops the script before its next slice.
+         */
+        public void cancel() {
+            result.cancel(false);
+        }
+
+        @Override
+        public int compareTo(Script other) {
+            int order = Long.compare(runtime, other.runtime);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
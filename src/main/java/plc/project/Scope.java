@@ -4,30 +4,150 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 public final class Scope {
 
     private final Scope parent;
-    private final Map<String, Environment.Variable> variables = new HashMap<>();
-    private final Map<String, Environment.Function> functions = new HashMap<>();
+
+    /**
+     * Builtins consulted after every scope of the parent chain, so functions
+     * defined by the program or the embedder take precedence over them.
+     */
+    private final Scope library;
+
+    /**
+     * Incremented whenever a function is defined in any scope of the tree,
+     * which lets call sites cache lookups and revalidate them with a single
+     * comparison. Nested scopes share the counter of their parent, but the
+     * root scope of each execution has its own, so independent executions
+     * over a shared parent never invalidate each other.
+     */
+    private final AtomicLong epoch;
+    private boolean frozen = false;
+    private Map<String, Environment.Variable> variables;
+    private Map<String, Environment.Function> functions;
+
+    /**
+     * Slots are variables whose names are known when the scope is created,
+     * such as function parameters. They are stored in arrays instead of the
+     * variable map so a scope can be reused across calls without reallocating.
+     */
+    private final String[] slotNames;
+    private final Environment.Variable[] slots;
+    private final boolean[] bound;
 
     public Scope(Scope parent) {
+        this(parent, parent != null ? parent.library : null, parent != null ? parent.epoch : new AtomicLong());
+    }
+
+    /**
+     * Creates the root scope of an execution, enclosed by {@code parent} and
+     * falling back to the functions of {@code library}. Nested scopes share
+     * the library. The root starts a new epoch, so functions should be
+     * defined in {@code parent} before executions over it are created.
+     */
+    Scope(Scope parent, Scope library) {
+        this(parent, library, new AtomicLong());
+    }
+
+    private Scope(Scope parent, Scope library, AtomicLong epoch) {
+        this.parent = parent;
+        this.library = library;
+        this.epoch = epoch;
+        this.slotNames = null;
+        this.slots = null;
+        this.bound = null;
+    }
+
+    public Scope(Scope parent, List<String> slotNames) {
+        this(parent, slotNames.toArray(new String[0]));
+    }
+
+    /**
+     * Creates a scope with the given slots. The array is shared, not copied.
+     */
+    Scope(Scope parent, String[] slotNames) {
         this.parent = parent;
+        this.library = parent != null ? parent.library : null;
+        this.epoch = parent != null ? parent.epoch : new AtomicLong();
+        this.slotNames = slotNames;
+        this.slots = new Environment.Variable[this.slotNames.length];
+        this.bound = new boolean[this.slotNames.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Environment.Variable(this.slotNames[i], true, Environment.NIL);
+        }
+    }
+
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Prevents any further definitions in this scope, so that it can be read
+     * from several threads without synchronization.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void requireMutable() {
+        if (frozen) {
+            throw new IllegalStateException("The scope is frozen and cannot be modified.");
+        }
     }
 
     public Scope getParent() {
         return parent;
     }
 
+    /**
+     * Binds the slot at the given index to a value, defining the variable in
+     * this scope.
+     */
+    public Environment.Variable bind(int slot, Environment.PlcObject value) {
+        slots[slot].setValue(value);
+        bound[slot] = true;
+        return slots[slot];
+    }
+
+    /**
+     * Removes every variable defined in this scope so it can be reused. Slots
+     * keep their storage but become undefined until they are bound again, and
+     * release their values so a pooled scope does not keep them reachable.
+     */
+    public void reset() {
+        if (bound != null) {
+            for (int i = 0; i < bound.length; i++) {
+                bound[i] = false;
+                slots[i].setValue(Environment.NIL);
+            }
+        }
+        if (variables != null) {
+            variables.clear();
+        }
+    }
+
     public void defineVariable(String name, boolean mutable, Environment.PlcObject value) {
         defineVariable(name, name, Environment.Type.ANY, mutable, value);
     }
 
     public Environment.Variable defineVariable(String name, String jvmName, Environment.Type type, boolean mutable, Environment.PlcObject value) {
-        if (variables.containsKey(name)) {
+        requireMutable();
+        int slot = findSlot(name);
+        if ((slot >= 0 && bound[slot]) || (variables != null && variables.containsKey(name))) {
             throw new RuntimeException("The variable " + name + " is already defined in this scope.");
+        } else if (slot >= 0) {
+            return bind(slot, value);
         } else {
+            if (variables == null) {
+                variables = new HashMap<>();
+            }
             Environment.Variable variable = new Environment.Variable(name, jvmName, type, mutable, value);
             variables.put(variable.getName(), variable);
             return variables.get(name);
@@ -35,13 +155,30 @@ public final class Scope {
     }
 
     public Environment.Variable lookupVariable(String name) {
-        if (variables.containsKey(name)) {
-            return variables.get(name);
-        } else if (parent != null) {
-            return parent.lookupVariable(name);
-        } else {
-            throw new RuntimeException("The variable " + name + " is not defined in this scope.");
+        for (Scope scope = this; scope != null; scope = scope.parent) {
+            int slot = scope.findSlot(name);
+            if (slot >= 0 && scope.bound[slot]) {
+                return scope.slots[slot];
+            }
+            if (scope.variables != null) {
+                Environment.Variable variable = scope.variables.get(name);
+                if (variable != null) {
+                    return variable;
+                }
+            }
         }
+        throw new RuntimeException("The variable " + name + " is not defined in this scope.");
+    }
+
+    private int findSlot(String name) {
+        if (slotNames != null) {
+            for (int i = 0; i < slotNames.length; i++) {
+                if (slotNames[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 
     public void defineFunction(String name, int arity, Function<List<Environment.PlcObject>, Environment.PlcObject> function) {
@@ -53,31 +190,60 @@ public final class Scope {
     }
 
     public Environment.Function defineFunction(String name, String jvmName, List<Environment.Type> parameterTypes, Environment.Type returnType, java.util.function.Function<List<Environment.PlcObject>, Environment.PlcObject> function) {
-        if (functions.containsKey(name + "/" + parameterTypes.size())) {
+        return defineFunction(name, jvmName, parameterTypes, returnType, Environment.Invoker.of(function));
+    }
+
+    public Environment.Function defineFunction(String name, String jvmName, List<Environment.Type> parameterTypes, Environment.Type returnType, Environment.Invoker invoker) {
+        requireMutable();
+        if (functions != null && functions.containsKey(name + "/" + parameterTypes.size())) {
             throw new RuntimeException("The function " + name + "/" + parameterTypes.size() + " is already defined in this scope.");
         } else {
-            Environment.Function func = new Environment.Function(name, jvmName, parameterTypes, returnType, function);
+            if (functions == null) {
+                functions = new HashMap<>();
+            }
+            Environment.Function func = new Environment.Function(name, jvmName, parameterTypes, returnType, invoker);
             functions.put(func.getName() + "/" + func.getParameterTypes().size(), func);
+            epoch.incrementAndGet();
             return func;
         }
     }
 
     public Environment.Function lookupFunction(String name, int arity) {
-        if (functions.containsKey(name + "/" + arity)) {
-            return functions.get(name + "/" + arity);
-        } else if (parent != null) {
-            return parent.lookupFunction(name, arity);
-        } else {
-            throw new RuntimeException("The function " + name + "/" + arity + " is not defined in this scope.");
+        String key = name + "/" + arity;
+        for (Scope scope = this; scope != null; scope = scope.parent) {
+            if (scope.functions != null) {
+                Environment.Function function = scope.functions.get(key);
+                if (function != null) {
+                    return function;
+                }
+            }
+        }
+        if (library != null) {
+            return library.lookupFunction(name, arity);
+        }
+        throw new RuntimeException("The function " + name + "/" + arity + " is not defined in this scope.");
+    }
+
+    /**
+     * Returns true if the function is not defined in this scope or its
+     * parents, so that lookups fall back to the library.
+     */
+    boolean isLibraryFunction(String name, int arity) {
+        String key = name + "/" + arity;
+        for (Scope scope = this; scope != null; scope = scope.parent) {
+            if (scope.functions != null && scope.functions.containsKey(key)) {
+                return false;
+            }
         }
+        return library != null && library.functions != null && library.functions.containsKey(key);
     }
 
     @Override
     public String toString() {
         return "Scope{" +
                 "parent=" + parent +
-                ", variables=" + variables.keySet() +
-                ", functions=" + functions.keySet() +
+                ", variables=" + (variables == null ? "[]" : variables.keySet()) +
+                ", functions=" + (functions == null ? "[]" : functions.keySet()) +
                 '}';
     }
 
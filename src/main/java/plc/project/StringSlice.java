@@ -0,0 +1,63 @@
+package plc.project;
+
+/**
+ * A view of a range of a string, returned by {@code slice}. Slicing a slice
+ * shares the original string, so tokenizing a large string does not copy it;
+ * the characters are only copied if the slice is flattened into a
+ * {@link String}, which happens at most once.
+ */
+public final class StringSlice implements CharSequence {
+
+    private final String source;
+    private final int offset;
+    private final int length;
+    private String flat = null;
+
+    private StringSlice(String source, int offset, int length) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the characters from {@code start} (inclusive) to {@code end}
+     * (exclusive) of the text, following {@link String#substring(int, int)}.
+     */
+    public static StringSlice of(CharSequence text, int start, int end) {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new RuntimeException("The slice " + start + " to " + end + " is out of bounds for a string of length " + text.length() + ".");
+        }
+        if (text instanceof StringSlice) {
+            StringSlice slice = (StringSlice) text;
+            return new StringSlice(slice.source, slice.offset + start, end - start);
+        }
+        return new StringSlice(text.toString(), start, end - start);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return source.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return of(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = source.substring(offset, offset + length);
+        }
+        return flat;
+    }
+
+}
@@ -0,0 +1,273 @@
+package plc.project;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A fixed size list of PLC values stored in a primitive array when every
+ * element has the same type: {@code long[]} for integers, {@code double[]} for
+ * decimals, {@code char[]} for characters and {@code boolean[]} for booleans.
+ *
+ * A value is only stored in a primitive array if it converts back to an equal
+ * value, so integers must fit in a long and decimals must be exactly
+ * representable as a double (including their scale). Storing any other value
+ * moves the list to object storage, which it then keeps.
+ */
+public final class TypedList extends AbstractList<Object> implements RandomAccess {
+
+    private final int size;
+    private Environment.Type type;
+    private long[] longs;
+    private double[] doubles;
+    private char[] chars;
+    private boolean[] booleans;
+    private Object[] objects;
+
+    private TypedList(Environment.Type type, int size) {
+        this.type = type;
+        this.size = size;
+        if (type == Environment.Type.INTEGER) {
+            longs = new long[size];
+        } else if (type == Environment.Type.DECIMAL) {
+            doubles = new double[size];
+        } else if (type == Environment.Type.CHARACTER) {
+            chars = new char[size];
+        } else if (type == Environment.Type.BOOLEAN) {
+            booleans = new boolean[size];
+        } else {
+            objects = new Object[size];
+        }
+    }
+
+    /**
+     * Creates a list holding the values, using the most specific storage that
+     * can represent all of them exactly.
+     */
+    public static TypedList of(List<?> values) {
+        Environment.Type type = values.isEmpty() ? Environment.Type.ANY : storageType(values.get(0));
+        for (int i = 1; i < values.size() && type != Environment.Type.ANY; i++) {
+            if (storageType(values.get(i)) != type) {
+                type = Environment.Type.ANY;
+            }
+        }
+        TypedList list = new TypedList(type, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            list.store(i, values.get(i));
+        }
+        return list;
+    }
+
+    /**
+     * Creates a list with the given storage, holding zero values or nulls
+     * until its elements are stored. Used to restore checkpoints.
+     */
+    static TypedList allocate(Environment.Type type, int size) {
+        return new TypedList(type, size);
+    }
+
+    /**
+     * Returns the primitive storage type a value can be kept in, or
+     * {@link Environment.Type#ANY} if it needs object storage.
+     */
+    static Environment.Type storageType(Object value) {
+        if (value instanceof BigInteger) {
+            return ((BigInteger) value).bitLength() < 64 ? Environment.Type.INTEGER : Environment.Type.ANY;
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return BigDecimal.valueOf(decimal.doubleValue()).equals(decimal) ? Environment.Type.DECIMAL : Environment.Type.ANY;
+        } else if (value instanceof Character) {
+            return Environment.Type.CHARACTER;
+        } else if (value instanceof Boolean) {
+            return Environment.Type.BOOLEAN;
+        }
+        return Environment.Type.ANY;
+    }
+
+    /**
+     * Returns the primitive array (or object array) the elements are stored
+     * in, for bulk operations which must not change its length.
+     */
+    Object array() {
+        if (type == Environment.Type.INTEGER) {
+            return longs;
+        } else if (type == Environment.Type.DECIMAL) {
+            return doubles;
+        } else if (type == Environment.Type.CHARACTER) {
+            return chars;
+        } else if (type == Environment.Type.BOOLEAN) {
+            return booleans;
+        }
+        return objects;
+    }
+
+    /**
+     * Returns a new list with the same storage and elements.
+     */
+    TypedList copy() {
+        TypedList copy = new TypedList(type, size);
+        System.arraycopy(array(), 0, copy.array(), 0, size);
+        return copy;
+    }
+
+    /**
+     * Returns the type of the elements, or {@link Environment.Type#ANY} once the
+     * list uses object storage.
+     */
+    public Environment.Type getElementType() {
+        return type;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (type == Environment.Type.INTEGER) {
+            return BigInteger.valueOf(longs[index]);
+        } else if (type == Environment.Type.DECIMAL) {
+            return BigDecimal.valueOf(doubles[index]);
+        } else if (type == Environment.Type.CHARACTER) {
+            return chars[index];
+        } else if (type == Environment.Type.BOOLEAN) {
+            return booleans[index];
+        }
+        return objects[index];
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        Object previous = get(index);
+        store(index, value);
+        return previous;
+    }
+
+    /**
+     * Returns the element at the index as an object. Small integers, ASCII
+     * characters and booleans are canonical, so reading them does not allocate.
+     */
+    public Environment.PlcObject load(int index) {
+        if (type == Environment.Type.INTEGER) {
+            return Environment.integer(longs[index]);
+        } else if (type == Environment.Type.CHARACTER) {
+            return Environment.create(chars[index]);
+        } else if (type == Environment.Type.BOOLEAN) {
+            return booleans[index] ? Environment.TRUE : Environment.FALSE;
+        }
+        return Environment.create(get(index));
+    }
+
+    /**
+     * Replaces the element at the index without returning the previous one.
+     */
+    public void store(int index, Object value) {
+        if (type != Environment.Type.ANY && storageType(value) != type) {
+            generalize();
+        }
+        if (type == Environment.Type.INTEGER) {
+            longs[index] = ((BigInteger) value).longValue();
+        } else if (type == Environment.Type.DECIMAL) {
+            doubles[index] = ((BigDecimal) value).doubleValue();
+        } else if (type == Environment.Type.CHARACTER) {
+            chars[index] = (Character) value;
+        } else if (type == Environment.Type.BOOLEAN) {
+            booleans[index] = (Boolean) value;
+        } else {
+            objects[index] = value;
+        }
+    }
+
+    /**
+     * Writes the elements of a list with primitive storage, in the format
+     * {@link #readElements(ByteBuffer)} reads.
+     */
+    void writeElements(DataOutput out) throws IOException {
+        if (type == Environment.Type.INTEGER) {
+            for (long value : longs) {
+                out.writeLong(value);
+            }
+        } else if (type == Environment.Type.DECIMAL) {
+            for (double value : doubles) {
+                out.writeDouble(value);
+            }
+        } else if (type == Environment.Type.CHARACTER) {
+            for (char value : chars) {
+                out.writeChar(value);
+            }
+        } else {
+            for (boolean value : booleans) {
+                out.writeBoolean(value);
+            }
+        }
+    }
+
+    /**
+     * Reads the elements of a list with primitive storage in bulk.
+     */
+    void readElements(ByteBuffer in) {
+        if (type == Environment.Type.INTEGER) {
+            in.asLongBuffer().get(longs);
+            in.position(in.position() + 8 * size);
+        } else if (type == Environment.Type.DECIMAL) {
+            in.asDoubleBuffer().get(doubles);
+            in.position(in.position() + 8 * size);
+        } else if (type == Environment.Type.CHARACTER) {
+            in.asCharBuffer().get(chars);
+            in.position(in.position() + 2 * size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                booleans[i] = in.get() != 0;
+            }
+        }
+    }
+
+    /**
+     * Moves the elements to object storage.
+     */
+    private void generalize() {
+        Object[] values = new Object[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = get(i);
+        }
+        objects = values;
+        longs = null;
+        doubles = null;
+        chars = null;
+        booleans = null;
+        type = Environment.Type.ANY;
+    }
+
+    /**
+     * Reads an element of any list, avoiding boxing for typed and mapped lists.
+     */
+    public static Environment.PlcObject load(List<?> list, int index) {
+        if (list instanceof TypedList) {
+            return ((TypedList) list).load(index);
+        } else if (list instanceof MappedList) {
+            return ((MappedList) list).load(index);
+        }
+        return Environment.create(list.get(index));
+    }
+
+    /**
+     * Writes an element of any list, avoiding boxing for typed and mapped lists.
+     */
+    @SuppressWarnings("unchecked")
+    public static void store(List<?> list, int index, Object value) {
+        if (list instanceof TypedList) {
+            ((TypedList) list).store(index, value);
+        } else if (list instanceof MappedList) {
+            ((MappedList) list).store(index, value);
+        } else {
+            ((List<Object>) list).set(index, value);
+        }
+    }
+
+}
@@ -144,6 +144,20 @@ public final class AnalyzerTests {
                                 ))
                         )),
                         null
+                ),
+                Arguments.of("Tail Call",
+                        // FUN loop(num: Integer): Integer DO RETURN loop(num); END
+                        new Ast.Function("loop", Arrays.asList("num"), Arrays.asList("Integer"), Optional.of("Integer"), Arrays.asList(
+                                new Ast.Statement.Return(new Ast.Expression.Function("loop", Arrays.asList(
+                                        new Ast.Expression.Access(Optional.empty(), "num")
+                                )))
+                        )),
+                        init(new Ast.Function("loop", Arrays.asList("num"), Arrays.asList("Integer"), Optional.of("Integer"), Arrays.asList(
+                                init(new Ast.Statement.Return(init(new Ast.Expression.Function("loop", Arrays.asList(
+                                        init(new Ast.Expression.Access(Optional.empty(), "num"), ast -> ast.setVariable(new Environment.Variable("num", "num", Environment.Type.INTEGER, true, Environment.NIL)))
+                                )), ast -> ast.setFunction(new Environment.Function("loop", "loop", Arrays.asList(Environment.Type.INTEGER), Environment.Type.INTEGER, args -> Environment.NIL)))),
+                                ast -> ast.setTailCall(true))
+                        )), ast -> ast.setFunction(new Environment.Function("loop", "loop", Arrays.asList(Environment.Type.INTEGER), Environment.Type.INTEGER, args -> Environment.NIL)))
                 )
         );
     }
@@ -381,6 +395,42 @@ public final class AnalyzerTests {
                                 )
                         ),
                         null
+                ),
+                Arguments.of("Non-Constant Case Value",
+                        // SWITCH number CASE number: print("yes"); END
+                        new Ast.Statement.Switch(
+                                new Ast.Expression.Access(Optional.empty(),"number"),
+                                Arrays.asList(
+                                        new Ast.Statement.Case(
+                                                Optional.of(new Ast.Expression.Access(Optional.empty(), "number")),
+                                                Arrays.asList(
+                                                        new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("yes"))))
+                                                )
+                                        )
+                                )
+                        ),
+                        null
+                ),
+                Arguments.of("Duplicate Case Value",
+                        // SWITCH number CASE 1: print("yes"); CASE 1: print("no"); END
+                        new Ast.Statement.Switch(
+                                new Ast.Expression.Access(Optional.empty(),"number"),
+                                Arrays.asList(
+                                        new Ast.Statement.Case(
+                                                Optional.of(new Ast.Expression.Literal(BigInteger.ONE)),
+                                                Arrays.asList(
+                                                        new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("yes"))))
+                                                )
+                                        ),
+                                        new Ast.Statement.Case(
+                                                Optional.of(new Ast.Expression.Literal(BigInteger.ONE)),
+                                                Arrays.asList(
+                                                        new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("no"))))
+                                                )
+                                        )
+                                )
+                        ),
+                        null
                 )
         );
     }
@@ -494,6 +544,7 @@ public final class AnalyzerTests {
     public void testFunctionExpression(String test, Ast.Expression.Function ast, Ast.Expression.Function expected) {
         test(ast, expected, init(new Scope(null), scope -> {
             scope.defineFunction("function", "function", Arrays.asList(), Environment.Type.INTEGER, args -> Environment.NIL);
+            scope.defineVariable("list", "list", Environment.Type.DECIMAL, true, Environment.NIL);
         }));
     }
 
@@ -503,6 +554,21 @@ public final class AnalyzerTests {
                         // function()
                         new Ast.Expression.Function("function", Arrays.asList()),
                         init(new Ast.Expression.Function("function", Arrays.asList()), ast -> ast.setFunction(new Environment.Function("function", "function", Arrays.asList(), Environment.Type.INTEGER, args -> Environment.NIL)))
+                ),
+                Arguments.of("List Builtin",
+                        // max(list)
+                        new Ast.Expression.Function("max", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "list"))),
+                        init(new Ast.Expression.Function("max", Arrays.asList(
+                                init(new Ast.Expression.Access(Optional.empty(), "list"), ast -> ast.setVariable(new Environment.Variable("list", "list", Environment.Type.DECIMAL, true, Environment.NIL)))
+                        )), ast -> ast.setFunction(new Environment.Function("max", "plc.project.Lists.max", Arrays.asList(Environment.Type.ANY), Environment.Type.DECIMAL, args -> Environment.NIL)))
+                ),
+                Arguments.of("List Builtin Element Type",
+                        // fill(list, 1)
+                        new Ast.Expression.Function("fill", Arrays.asList(
+                                new Ast.Expression.Access(Optional.empty(), "list"),
+                                new Ast.Expression.Literal(BigInteger.ONE)
+                        )),
+                        null
                 )
         );
     }
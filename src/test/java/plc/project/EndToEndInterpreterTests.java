@@ -35,6 +35,16 @@ final class EndToEndInterpreterTests {
                 Arguments.of("Globals & No Return",
                         "VAR x: Integer = 1; VAR y: Integer = 10; FUN main() DO x + y; END",
                         Environment.NIL.getValue()
+                ),
+                // FUN one() DO RETURN 1; END FUN main() DO LET i = 0; WHILE i < 3 DO i = i + one(); END RETURN i; END
+                Arguments.of("Call Inside Block",
+                        "FUN one() DO RETURN 1; END FUN main() DO LET i = 0; WHILE i < 3 DO i = i + one(); END RETURN i; END",
+                        BigInteger.valueOf(3)
+                ),
+                // FUN sum(n) DO IF n < 1 DO RETURN 0; END RETURN n + sum(n + -1); END FUN main() DO RETURN sum(10); END
+                Arguments.of("Recursion",
+                        "FUN sum(n) DO IF n < 1 DO RETURN 0; END RETURN n + sum(n + -1); END FUN main() DO RETURN sum(10); END",
+                        BigInteger.valueOf(55)
                 )
         );
     }
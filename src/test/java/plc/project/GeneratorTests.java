@@ -76,6 +76,18 @@ public class GeneratorTests {
         test(astList, expected);
     }
 
+    @Test
+    void testListBuiltin() {
+        // sum(list), with list an Integer list
+        Scope scope = new Scope(null);
+        scope.defineVariable("list", "list", Environment.Type.INTEGER, true, Environment.NIL);
+        Ast.Expression.Function ast = new Ast.Expression.Function("sum", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "list")));
+        new Analyzer(scope).visit(ast);
+        Assertions.assertEquals(Environment.Type.INTEGER, ast.getType());
+        test(ast, "plc.project.Lists.sum(list)");
+        Assertions.assertEquals(6, Lists.sum(new int[] {1, 2, 3}));
+    }
+
     @ParameterizedTest(name = "{0}")
     @MethodSource
     void testDeclarationStatement(String test, Ast.Statement.Declaration ast, String expected) {
@@ -7,12 +7,26 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 final class InterpreterTests {
@@ -110,6 +124,693 @@ final class InterpreterTests {
         );
     }
 
+    @Test
+    void testFunctionInvokers() {
+        // FUN add(x, y) DO RETURN x + y; END
+        Ast.Function ast = new Ast.Function("add", Arrays.asList("x", "y"), Arrays.asList(
+                new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "x"),
+                        new Ast.Expression.Access(Optional.empty(), "y")
+                ))
+        ));
+        Scope scope = test(ast, Environment.NIL.getValue(), new Scope(null));
+        Environment.Function function = scope.lookupFunction("add", 2);
+        Environment.PlcObject one = Environment.create(BigInteger.ONE);
+        Environment.PlcObject two = Environment.create(BigInteger.valueOf(2));
+        Assertions.assertEquals(BigInteger.valueOf(3), function.invoke2(one, two).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(3), function.invoke(new Environment.PlcObject[] {one, two}).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(3), function.invoke(Arrays.asList(one, two)).getValue());
+        Assertions.assertThrows(RuntimeException.class, () -> function.invoke1(one));
+
+        // frames returned to the pool release their values
+        Scope frame = new Scope(null, Arrays.asList("x"));
+        Environment.Variable x = frame.bind(0, two);
+        frame.reset();
+        Assertions.assertSame(Environment.NIL, x.getValue());
+    }
+
+    @Test
+    void testCallSiteCache() {
+        // WHILE num < 10 DO num = increment(num); END
+        Scope scope = new Scope(null);
+        scope.defineVariable("num", true, Environment.create(BigInteger.ZERO));
+        scope.defineFunction("increment", 1, args -> Environment.create(((BigInteger) args.get(0).getValue()).add(BigInteger.ONE)));
+        Ast.Expression.Function call = new Ast.Expression.Function("increment", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "num")));
+        Ast.Statement.While ast = new Ast.Statement.While(
+                new Ast.Expression.Binary("<",
+                        new Ast.Expression.Access(Optional.empty(), "num"),
+                        new Ast.Expression.Literal(BigInteger.TEN)
+                ),
+                Arrays.asList(new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "num"), call))
+        );
+        Interpreter interpreter = new Interpreter(scope);
+        interpreter.visit(ast);
+        Assertions.assertEquals(BigInteger.TEN, scope.lookupVariable("num").getValue().getValue());
+        Assertions.assertEquals(1, interpreter.getCallSiteMisses());
+        Assertions.assertEquals(9, interpreter.getCallSiteHits());
+
+        // shadowing the function invalidates the cached target
+        interpreter.getScope().defineFunction("increment", 1, args -> Environment.create("shadowed"));
+        Assertions.assertEquals("shadowed", interpreter.visit(call).getValue());
+        Assertions.assertEquals(2, interpreter.getCallSiteMisses());
+    }
+
+    @Test
+    void testTailCall() {
+        // FUN count(n: Integer, acc: Integer): Integer DO IF n == 0 DO RETURN acc; END RETURN count(n - 1, acc + 1); END
+        Ast.Function ast = new Ast.Function("count", Arrays.asList("n", "acc"), Arrays.asList("Integer", "Integer"), Optional.of("Integer"), Arrays.asList(
+                new Ast.Statement.If(
+                        new Ast.Expression.Binary("==",
+                                new Ast.Expression.Access(Optional.empty(), "n"),
+                                new Ast.Expression.Literal(BigInteger.ZERO)
+                        ),
+                        Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "acc"))),
+                        Arrays.asList()
+                ),
+                new Ast.Statement.Return(new Ast.Expression.Function("count", Arrays.asList(
+                        new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ONE)),
+                        new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "acc"), new Ast.Expression.Literal(BigInteger.ONE))
+                )))
+        ));
+        new Analyzer(new Scope(null)).visit(ast);
+        Scope scope = test(ast, Environment.NIL.getValue(), new Scope(null));
+        Environment.PlcObject n = Environment.create(BigInteger.valueOf(100000));
+        Environment.PlcObject acc = Environment.create(BigInteger.ZERO);
+        Assertions.assertEquals(BigInteger.valueOf(100000), scope.lookupFunction("count", 2).invoke2(n, acc).getValue());
+    }
+
+    @Test
+    void testStackless() {
+        // FUN sum(n) DO IF n == 0 DO RETURN 0; END RETURN n + sum(n - 1); END
+        Ast.Function ast = new Ast.Function("sum", Arrays.asList("n"), Arrays.asList(
+                new Ast.Statement.If(
+                        new Ast.Expression.Binary("==",
+                                new Ast.Expression.Access(Optional.empty(), "n"),
+                                new Ast.Expression.Literal(BigInteger.ZERO)
+                        ),
+                        Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.ZERO))),
+                        Arrays.asList()
+                ),
+                new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "n"),
+                        new Ast.Expression.Function("sum", Arrays.asList(
+                                new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ONE))
+                        ))
+                ))
+        ));
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setStackless(200000);
+        interpreter.visit(ast);
+        Environment.Function function = interpreter.getScope().lookupFunction("sum", 1);
+        Assertions.assertEquals(BigInteger.valueOf(5000050000L), function.invoke1(Environment.create(BigInteger.valueOf(100000))).getValue());
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                () -> function.invoke1(Environment.create(BigInteger.valueOf(300000))));
+        Assertions.assertTrue(exception.getMessage().startsWith("Stack overflow"));
+        // the machine is left usable after an overflow
+        Assertions.assertEquals(BigInteger.valueOf(55), function.invoke1(Environment.create(BigInteger.TEN)).getValue());
+    }
+
+    @Test
+    void testStacklessSwitch() {
+        // FUN answer(letter) DO SWITCH letter CASE 'y': RETURN "yes"; DEFAULT: LET no = "no"; RETURN no; END END
+        Ast.Function ast = new Ast.Function("answer", Arrays.asList("letter"), Arrays.asList(
+                new Ast.Statement.Switch(new Ast.Expression.Access(Optional.empty(), "letter"), Arrays.asList(
+                        new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal('y')), Arrays.asList(
+                                new Ast.Statement.Return(new Ast.Expression.Literal("yes"))
+                        )),
+                        new Ast.Statement.Case(Optional.empty(), Arrays.asList(
+                                new Ast.Statement.Declaration("no", Optional.of(new Ast.Expression.Literal("no"))),
+                                new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "no"))
+                        ))
+                ))
+        ));
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setStackless(100);
+        interpreter.visit(ast);
+        Environment.Function function = interpreter.getScope().lookupFunction("answer", 1);
+        Assertions.assertEquals("yes", function.invoke1(Environment.create('y')).getValue());
+        Assertions.assertEquals("no", function.invoke1(Environment.create('n')).getValue());
+    }
+
+    @Test
+    void testCanonicalValues() {
+        Assertions.assertSame(Environment.TRUE, Environment.create(true));
+        Assertions.assertSame(Environment.FALSE, Environment.create(Boolean.FALSE));
+        Assertions.assertSame(Environment.create(BigInteger.valueOf(42)), Environment.create(new BigInteger("42")));
+        Assertions.assertSame(Environment.create('c'), Environment.create('c'));
+        Assertions.assertSame(Environment.Type.INTEGER, Environment.create(BigInteger.valueOf(Long.MAX_VALUE)).getType());
+        Assertions.assertSame(Environment.Type.STRING, Environment.create("string").getType());
+        Assertions.assertSame(Environment.Type.ANY, Environment.create(Arrays.asList()).getType());
+        // 1 < 10
+        Ast ast = new Ast.Expression.Binary("<",
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.TEN)
+        );
+        Assertions.assertSame(Environment.TRUE, new Interpreter(new Scope(null)).visit(ast));
+    }
+
+    @Test
+    void testNestedArithmetic() {
+        // one() + (one() + (one() + ... )) nested 40 deep, evaluating each operand once
+        int[] calls = {0};
+        Scope scope = new Scope(null);
+        scope.defineFunction("one", 0, args -> {
+            calls[0]++;
+            return Environment.create(BigInteger.ONE);
+        });
+        Ast.Expression nested = new Ast.Expression.Function("one", Arrays.asList());
+        for (int i = 0; i < 40; i++) {
+            nested = new Ast.Expression.Binary(i % 2 == 0 ? "+" : "*", new Ast.Expression.Function("one", Arrays.asList()), nested);
+        }
+        Ast.Expression ast = nested;
+        Assertions.assertEquals(BigInteger.valueOf(21), new Interpreter(scope).visit(ast).getValue());
+        Assertions.assertEquals(41, calls[0]);
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> new Interpreter(scope).visit(
+                new Ast.Expression.Binary("-", new Ast.Expression.Literal("a"), ast)
+        ));
+        Assertions.assertEquals("Mismatched Types -", exception.getMessage());
+    }
+
+    @Test
+    void testRopeConcatenation() {
+        // WHILE num < 1000000 DO report = report + "0123456789"; num = num + 1; END
+        Scope scope = new Scope(null);
+        scope.defineVariable("num", true, Environment.create(BigInteger.ZERO));
+        scope.defineVariable("report", true, Environment.create(""));
+        Ast.Statement.While ast = new Ast.Statement.While(
+                new Ast.Expression.Binary("<",
+                        new Ast.Expression.Access(Optional.empty(), "num"),
+                        new Ast.Expression.Literal(BigInteger.valueOf(1000000))
+                ),
+                Arrays.asList(
+                        new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "report"), new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "report"),
+                                new Ast.Expression.Literal("0123456789")
+                        )),
+                        new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "num"), new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "num"),
+                                new Ast.Expression.Literal(BigInteger.ONE)
+                        ))
+                )
+        );
+        new Interpreter(scope).visit(ast);
+        Object report = scope.lookupVariable("report").getValue().getValue();
+        Assertions.assertEquals(String.class, report.getClass());
+        Assertions.assertEquals(10000000, ((String) report).length());
+        Assertions.assertTrue(((String) report).endsWith("89"));
+
+        // appending to an earlier rope leaves the later ones unchanged
+        Rope base = Rope.concat("a", "b");
+        Rope first = base.append("c");
+        Rope second = base.append("d");
+        Assertions.assertEquals("abc", first.toString());
+        Assertions.assertEquals("abd", second.toString());
+        Assertions.assertEquals("ab1", Rope.concat(base, BigInteger.ONE).toString());
+    }
+
+    @Test
+    void testStringBuiltins() {
+        // slice(slice(text, 6, 17), 0, 5)
+        Scope scope = new Scope(null);
+        scope.defineVariable("text", true, Environment.create("Hello, World of slices!"));
+        Interpreter interpreter = new Interpreter(scope);
+        Ast.Expression.Function slice = new Ast.Expression.Function("slice", Arrays.asList(
+                new Ast.Expression.Function("slice", Arrays.asList(
+                        new Ast.Expression.Access(Optional.empty(), "text"),
+                        new Ast.Expression.Literal(BigInteger.valueOf(7)),
+                        new Ast.Expression.Literal(BigInteger.valueOf(15))
+                )),
+                new Ast.Expression.Literal(BigInteger.ZERO),
+                new Ast.Expression.Literal(BigInteger.valueOf(5))
+        ));
+        Environment.PlcObject world = interpreter.visit(slice);
+        Assertions.assertEquals(StringSlice.class, world.getRawValue().getClass());
+        Assertions.assertEquals(Environment.Type.STRING, world.getType());
+        Assertions.assertEquals("World", world.getValue());
+
+        Environment.Function length = interpreter.getScope().lookupFunction("length", 1);
+        Environment.Function compare = interpreter.getScope().lookupFunction("compare", 2);
+        Assertions.assertEquals(BigInteger.valueOf(5), length.invoke1(world).getValue());
+        Assertions.assertSame(Environment.integer(0), compare.invoke2(world, Environment.create("World")));
+        Assertions.assertTrue(((BigInteger) compare.invoke2(Environment.create("Hello"), world).getValue()).signum() < 0);
+        Assertions.assertEquals(BigInteger.valueOf(-1), compare.invoke2(Environment.create(BigInteger.ONE), Environment.create(BigInteger.TEN)).getValue());
+        Assertions.assertEquals("World!", interpreter.visit(new Ast.Expression.Binary("+", new Ast.Expression.Literal(world.getValue()), new Ast.Expression.Literal("!"))).getValue());
+        Assertions.assertThrows(RuntimeException.class, () -> length.invoke1(Environment.create(BigInteger.ONE)));
+        // slice("abc", "x", 1)
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(
+                new Ast.Expression.Function("slice", Arrays.asList(
+                        new Ast.Expression.Literal("abc"),
+                        new Ast.Expression.Literal("x"),
+                        new Ast.Expression.Literal(BigInteger.ONE)
+                ))));
+        Assertions.assertEquals("Expected type java.math.BigInteger, received java.lang.String.", exception.getMessage());
+    }
+
+    @Test
+    void testShadowedBuiltin() {
+        // FUN length(x) DO RETURN 42; END FUN main() DO RETURN length("abc"); END
+        Ast.Source ast = new Ast.Source(Arrays.asList(), Arrays.asList(
+                new Ast.Function("length", Arrays.asList("x"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.valueOf(42)))
+                )),
+                new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Function("length", Arrays.asList(
+                                new Ast.Expression.Literal("abc")
+                        )))
+                ))
+        ));
+        Assertions.assertEquals(BigInteger.valueOf(42), new Interpreter(new Scope(null)).visit(ast).getValue());
+    }
+
+    @Test
+    void testMeter() {
+        // WHILE TRUE DO END
+        Ast.Statement.While loop = new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList());
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        Meter meter = Meter.budget(5000);
+        interpreter.setMeter(meter);
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(loop));
+        Assertions.assertEquals("Execution aborted: the budget of 5000 steps was exceeded.", exception.getMessage());
+        Assertions.assertEquals(5000, meter.getUsed());
+
+        interpreter.setMeter(Meter.timeout(Duration.ofMillis(10)));
+        exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(loop));
+        Assertions.assertEquals("Execution aborted: the deadline was exceeded.", exception.getMessage());
+
+        interpreter.setMeter(Meter.budget(Long.MAX_VALUE));
+        Thread.currentThread().interrupt();
+        try {
+            exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(loop));
+            Assertions.assertEquals("Execution aborted: the thread was interrupted.", exception.getMessage());
+        } finally {
+            Thread.interrupted();
+        }
+
+        // FUN spin() DO WHILE TRUE DO END END
+        Interpreter stackless = new Interpreter(new Scope(null));
+        stackless.setStackless(100);
+        stackless.setMeter(Meter.budget(100));
+        stackless.visit(new Ast.Function("spin", Arrays.asList(), Arrays.asList(loop)));
+        exception = Assertions.assertThrows(RuntimeException.class, () -> stackless.getScope().lookupFunction("spin", 0).invoke0());
+        Assertions.assertEquals("Execution aborted: the budget of 100 steps was exceeded.", exception.getMessage());
+    }
+
+    @Test
+    void testMemoryQuota() {
+        // WHILE TRUE DO report = report + "0123456789"; END
+        Scope scope = new Scope(null);
+        scope.defineVariable("report", true, Environment.create(""));
+        Ast.Statement.While loop = new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList(
+                new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "report"), new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "report"),
+                        new Ast.Expression.Literal("0123456789")
+                ))
+        ));
+        Interpreter interpreter = new Interpreter(scope);
+        Meter meter = Meter.quota(1 << 20);
+        interpreter.setMeter(meter);
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(loop));
+        Assertions.assertEquals("Execution aborted: the memory quota of 1048576 bytes was exceeded.", exception.getMessage());
+        Assertions.assertTrue(meter.getLargest() > 1 << 17);
+
+        // WHILE TRUE DO copied = text + "y"; END, copying the whole text each time
+        scope.defineVariable("text", true, Environment.create(String.join("", Collections.nCopies(100000, "x"))));
+        scope.defineVariable("copied", true, Environment.create(""));
+        Ast.Statement.While copies = new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList(
+                new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "copied"), new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "text"),
+                        new Ast.Expression.Literal("y")
+                ))
+        ));
+        interpreter.setMeter(Meter.quota(1 << 20));
+        exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(copies));
+        Assertions.assertEquals("Execution aborted: the memory quota of 1048576 bytes was exceeded.", exception.getMessage());
+
+        // [1, 2, 3]
+        meter = Meter.quota(Long.MAX_VALUE);
+        interpreter.setMeter(meter);
+        interpreter.visit(new Ast.Expression.PlcList(Arrays.asList(
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.valueOf(2)),
+                new Ast.Expression.Literal(BigInteger.valueOf(3))
+        )));
+        Assertions.assertEquals(56, meter.getAllocated());
+        Assertions.assertEquals(56, meter.getLargest());
+
+        // 1 + 2; copy([1, 2, 3]);
+        meter = Meter.quota(Long.MAX_VALUE);
+        interpreter.setMeter(meter);
+        interpreter.visit(new Ast.Expression.Binary("+",
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.valueOf(2))
+        ));
+        Assertions.assertEquals(0, meter.getAllocated());
+        interpreter.visit(new Ast.Expression.Function("copy", Arrays.asList(new Ast.Expression.PlcList(Arrays.asList(
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.valueOf(2)),
+                new Ast.Expression.Literal(BigInteger.valueOf(3))
+        )))));
+        Assertions.assertEquals(112, meter.getAllocated());
+    }
+
+    @Test
+    void testConcurrentExecution() throws Exception {
+        // FUN fib(n) DO IF n < 2 DO RETURN n; END RETURN fib(n - 1) + fib(n - 2); END
+        // FUN main() DO RETURN fib(seed); END
+        Ast.Source ast = new Ast.Source(Arrays.asList(), Arrays.asList(
+                new Ast.Function("fib", Arrays.asList("n"), Arrays.asList("Integer"), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.If(
+                                new Ast.Expression.Binary("<",
+                                        new Ast.Expression.Access(Optional.empty(), "n"),
+                                        new Ast.Expression.Literal(BigInteger.valueOf(2))
+                                ),
+                                Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "n"))),
+                                Arrays.asList()
+                        ),
+                        new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Function("fib", Arrays.asList(new Ast.Expression.Binary("-",
+                                        new Ast.Expression.Access(Optional.empty(), "n"),
+                                        new Ast.Expression.Literal(BigInteger.ONE)
+                                ))),
+                                new Ast.Expression.Function("fib", Arrays.asList(new Ast.Expression.Binary("-",
+                                        new Ast.Expression.Access(Optional.empty(), "n"),
+                                        new Ast.Expression.Literal(BigInteger.valueOf(2))
+                                )))
+                        ))
+                )),
+                new Ast.Function("main", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Function("fib", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "seed"))))
+                ))
+        ));
+        int[] expected = {55, 89, 144, 233, 377, 610, 987, 1597};
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Interpreter>> runs = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int seed = 10 + i % expected.length;
+                runs.add(executor.submit(() -> {
+                    Scope scope = new Scope(null);
+                    scope.defineVariable("seed", false, Environment.create(BigInteger.valueOf(seed)));
+                    Interpreter interpreter = new Interpreter(scope);
+                    if (seed % 2 == 0) {
+                        interpreter.setStackless(64);
+                    }
+                    Assertions.assertEquals(BigInteger.valueOf(expected[seed - 10]), interpreter.visit(ast).getValue());
+                    return interpreter;
+                }));
+            }
+            for (Future<Interpreter> run : runs) {
+                // executions do not invalidate each other's call sites
+                Assertions.assertEquals(3, run.get().getCallSiteMisses());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // nor do interpreters and analyzers created over a shared parent
+        Scope shared = new Scope(null);
+        Interpreter first = new Interpreter(shared);
+        long epoch = first.getScope().getEpoch();
+        new Interpreter(shared);
+        new Analyzer(shared);
+        Assertions.assertEquals(epoch, first.getScope().getEpoch());
+        Assertions.assertThrows(IllegalStateException.class, () -> Environment.registerType(
+                new Environment.Type("Thread", "Thread", new Scope(Environment.Type.ANY.getScope()))));
+        Assertions.assertThrows(IllegalStateException.class, () -> Environment.getType("String").getScope()
+                .defineVariable("size", false, Environment.NIL));
+    }
+
+    @Test
+    void testPreparedProgram() {
+        PreparedProgram program = PreparedProgram.prepare(
+                "VAL limit = 4; VAR total = 0;" +
+                "FUN main() DO LET i = 0; WHILE i < limit DO i = i + 1; total = total + i; END print(total); RETURN total; END");
+        Assertions.assertEquals(Arrays.asList("limit", "total"), new ArrayList<>(program.getGlobals()));
+        PlcOutput.Capture output = PlcOutput.capture();
+        Assertions.assertEquals(BigInteger.valueOf(10), program.execute(Collections.emptyMap(), output, null).getValue());
+        // every execution starts from fresh globals
+        Assertions.assertEquals(BigInteger.valueOf(10), program.execute(Collections.emptyMap(), output, null).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(55), program.execute(Collections.singletonMap("limit", BigInteger.TEN), output, null).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(20), program.execute(Collections.singletonMap("total", BigInteger.TEN), output, null).getValue());
+        Assertions.assertEquals(String.join(System.lineSeparator(), "10", "10", "55", "20", ""), output.getText());
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                () -> program.execute(Collections.singletonMap("count", BigInteger.ONE)));
+        Assertions.assertEquals("The input count is not a global of the program.", exception.getMessage());
+    }
+
+    @Test
+    void testBatchExecutor() throws Exception {
+        PreparedProgram program = PreparedProgram.prepare(
+                "VAL n = 0; FUN main() DO LET i = 0; WHILE i != n DO i = i + 1; END print(i); RETURN i * i; END");
+        try (BatchExecutor executor = new BatchExecutor(4)) {
+            List<Future<BatchExecutor.Result>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(program, Collections.singletonMap("n", BigInteger.valueOf(i)), Duration.ofSeconds(10)));
+            }
+            Future<BatchExecutor.Result> endless = executor.submit(program, Collections.singletonMap("n", BigInteger.valueOf(-1)), Duration.ofMillis(50));
+            for (int i = 0; i < results.size(); i++) {
+                BatchExecutor.Result result = results.get(i).get();
+                Assertions.assertEquals(BigInteger.valueOf(i * i), result.getValue().getValue());
+                Assertions.assertEquals(i + System.lineSeparator(), result.getOutput());
+                Assertions.assertTrue(result.getLatency() > 0);
+            }
+            ExecutionException exception = Assertions.assertThrows(ExecutionException.class, endless::get);
+            Assertions.assertEquals("Execution aborted: the deadline was exceeded.", exception.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void testTask() {
+        PreparedProgram program = PreparedProgram.prepare(
+                "FUN main() DO LET i = 0; WHILE i < 100 DO i = i + 1; END RETURN i; END");
+        Machine.Task task = program.start(Collections.emptyMap(), PlcOutput.capture(), null);
+        int slices = 1;
+        // each iteration reaches one safepoint, the loop's back-edge
+        while (!task.resume(10)) {
+            Assertions.assertNull(task.getResult());
+            slices++;
+        }
+        Assertions.assertEquals(11, slices);
+        Assertions.assertEquals(BigInteger.valueOf(100), task.getResult().getValue());
+    }
+
+    @Test
+    void testScheduler() throws Exception {
+        PreparedProgram program = PreparedProgram.prepare(
+                "VAL n = 0; FUN main() DO LET i = 0; WHILE i != n DO i = i + 1; END print(i); RETURN i; END");
+        try (Scheduler scheduler = new Scheduler(2, 50)) {
+            PlcOutput.Capture output = PlcOutput.capture();
+            Scheduler.Script low = scheduler.submit(program, Collections.singletonMap("n", BigInteger.valueOf(5000)), 1, output);
+            Scheduler.Script high = scheduler.submit(program, Collections.singletonMap("n", BigInteger.valueOf(5000)), 4, output);
+            Scheduler.Script endless = scheduler.submit(program, Collections.singletonMap("n", BigInteger.valueOf(-1)), 1, PlcOutput.capture());
+            Assertions.assertEquals(BigInteger.valueOf(5000), low.getResult().get().getValue());
+            Assertions.assertEquals(BigInteger.valueOf(5000), high.getResult().get().getValue());
+            Assertions.assertTrue(low.getSlices() > 1 && high.getSlices() > 1);
+            Assertions.assertTrue(low.getCpuTime() > 0 && high.getCpuTime() > 0);
+            Assertions.assertEquals("5000" + System.lineSeparator() + "5000" + System.lineSeparator(), output.getText());
+            endless.cancel();
+            Assertions.assertTrue(endless.getResult().isCancelled());
+        }
+    }
+
+    @Test
+    void testCheckpoint() throws IOException {
+        PreparedProgram program = PreparedProgram.prepare(
+                "LIST table: Integer = [7, 2, 3]; VAR alias = table; VAR big = 2 ^ 70; VAL d = 1.5; VAL c = 'x';" +
+                "VAR n = print(\"init\"); LIST mixed: Any = [1, 2.5, \"s\", table];" +
+                "FUN main() DO alias[0] = alias[0] + 1; print(big); print(d); print(c); print(n); print(mixed[2]); RETURN table[0]; END");
+        String expected = String.join(System.lineSeparator(), "1180591620717411303424", "1.5", "x", "nil", "s", "");
+        Path path = Files.createTempFile("globals", ".bin");
+        try {
+            PlcOutput.Capture initialization = PlcOutput.capture();
+            program.checkpoint(Collections.emptyMap(), initialization, path);
+            Assertions.assertEquals("init" + System.lineSeparator(), initialization.getText());
+            Map<String, Environment.PlcObject> globals = Checkpoint.read(path);
+            Assertions.assertEquals(program.getGlobals(), globals.keySet());
+            Assertions.assertSame(globals.get("table").getValue(), globals.get("alias").getValue());
+            Assertions.assertSame(globals.get("table").getValue(), ((List<?>) globals.get("mixed").getValue()).get(3));
+            Assertions.assertSame(Environment.NIL, globals.get("n"));
+
+            // restoring skips every initializer, and each execution stores into its own copy
+            for (int i = 0; i < 2; i++) {
+                PlcOutput.Capture output = PlcOutput.capture();
+                Assertions.assertEquals(BigInteger.valueOf(8), program.execute(globals, output, null).getValue());
+                Assertions.assertEquals(expected, output.getText());
+            }
+            Assertions.assertEquals(BigInteger.valueOf(7), ((List<?>) globals.get("table").getValue()).get(0));
+
+            // lengths the file cannot hold are reported as corruption before allocating
+            byte[] bytes = Files.readAllBytes(path);
+            for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+                ByteBuffer.wrap(bytes).putInt(12, length);
+                Files.write(path, bytes);
+                RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> Checkpoint.read(path));
+                Assertions.assertEquals("The checkpoint " + path + " is truncated or corrupt.", exception.getMessage());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testLazyGlobals() {
+        // the initializer of total reads base, which is declared after it
+        PreparedProgram program = PreparedProgram.prepare(
+                "VAR total = base + 1; VAR base = 41; VAR unused = print(\"unused\"); VAR shadowed = n; VAR n = 1;" +
+                "FUN f(n) DO RETURN shadowed; END FUN main() DO print(total); RETURN total + f(5); END");
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> program.execute(Collections.emptyMap()));
+        Assertions.assertEquals("The variable base is not defined in this scope.", exception.getMessage());
+        PlcOutput.Capture output = PlcOutput.capture();
+        Assertions.assertEquals(BigInteger.valueOf(43), program.withLazyGlobals(true).execute(Collections.emptyMap(), output, null).getValue());
+        Assertions.assertEquals("42" + System.lineSeparator(), output.getText());
+
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setLazyGlobals(true);
+        Ast.Source cycle = new Parser(new Lexer("VAR x = y + 1; VAR y = z; VAR z = x; FUN main() DO RETURN x; END").lex()).parseSource();
+        exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(cycle));
+        Assertions.assertEquals("Cyclic initialization of globals: x -> y -> z -> x.", exception.getMessage());
+    }
+
+    @Test
+    void testLazyAnalysis() {
+        // FUN one(): Integer DO RETURN 1; END
+        // FUN bad(): Integer DO RETURN "one"; END
+        // FUN main(): Integer DO RETURN one() + later(); END
+        // FUN later(): Integer DO RETURN 2; END
+        java.util.function.Function<String, Ast.Source> source = called -> new Ast.Source(Arrays.asList(), Arrays.asList(
+                new Ast.Function("one", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.ONE))
+                )),
+                new Ast.Function("bad", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Literal("one"))
+                )),
+                new Ast.Function("main", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Function(called, Arrays.asList()),
+                                new Ast.Expression.Function("later", Arrays.asList())
+                        ))
+                )),
+                new Ast.Function("later", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.valueOf(2)))
+                ))
+        ));
+        // eager analysis checks every body, in order
+        Assertions.assertThrows(RuntimeException.class, () -> PreparedProgram.prepare(source.apply("one"), true));
+        // lazy analysis only checks the bodies which are called
+        Ast.Source ast = source.apply("one");
+        PreparedProgram program = PreparedProgram.prepareLazily(ast, true);
+        Ast.Expression sum = ((Ast.Statement.Return) ast.getFunctions().get(2).getStatements().get(0)).getValue();
+        Assertions.assertThrows(IllegalStateException.class, sum::getType);
+        Assertions.assertEquals(BigInteger.valueOf(3), program.execute(Collections.emptyMap()).getValue());
+        Assertions.assertEquals(Environment.Type.INTEGER, sum.getType());
+        RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                () -> PreparedProgram.prepareLazily(source.apply("bad"), true).execute(Collections.emptyMap()));
+        Assertions.assertEquals("Invalid assignment: attempting to assign String to a Integer variable.", exception.getMessage());
+    }
+
+    @Test
+    void testParallelGlobals() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // total waits for a and b, the prints run in declaration order on the calling thread
+            Ast.Source ast = new Parser(new Lexer(
+                    "VAR a = square(3); VAR b = square(4); VAR total = a + b; VAR shown = print(total); VAR after = print(a);" +
+                    "FUN square(n) DO RETURN n * n; END FUN main() DO RETURN total; END").lex()).parseSource();
+            for (int i = 0; i < 20; i++) {
+                Interpreter interpreter = new Interpreter(new Scope(null));
+                interpreter.setParallelGlobals(pool);
+                PlcOutput.Capture output = PlcOutput.capture();
+                interpreter.setOutput(output);
+                Assertions.assertEquals(BigInteger.valueOf(25), interpreter.visit(ast).getValue());
+                Assertions.assertEquals("25" + System.lineSeparator() + "9" + System.lineSeparator(), output.getText());
+            }
+            // the error of the first failing initializer declared is thrown
+            Ast.Source failing = new Parser(new Lexer(
+                    "VAR ok = 1; VAR x = f(); VAR y = g(); FUN f() DO RETURN p; END FUN g() DO RETURN q; END FUN main() DO RETURN x; END").lex()).parseSource();
+            for (int i = 0; i < 20; i++) {
+                Interpreter interpreter = new Interpreter(new Scope(null));
+                interpreter.setParallelGlobals(pool);
+                RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(failing));
+                Assertions.assertEquals("The variable p is not defined in this scope.", exception.getMessage());
+            }
+            // reading a global declared later fails as it does in declaration order
+            Ast.Source forward = new Parser(new Lexer("VAR total = a + b; VAR a = 1; VAR b = 2; FUN main() DO RETURN total; END").lex()).parseSource();
+            for (ForkJoinPool globals : Arrays.asList(null, pool)) {
+                Interpreter interpreter = new Interpreter(new Scope(null));
+                interpreter.setParallelGlobals(globals);
+                RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(forward));
+                Assertions.assertEquals("The variable a is not defined in this scope.", exception.getMessage());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testParallelLoops() {
+        String loops = "FUN square(n) DO RETURN n * n; END FUN main() DO LET i = 0; LET sum = 0;" +
+                "WHILE i < 8 DO LET x = xs[i]; out[i] = square(x) + out[i]; i = i + 1; END " +
+                "i = 0; WHILE i < 6 DO sum = sum + xs[i]; i = i + 1; END RETURN sum; END";
+        Ast.Source ast = new Parser(new Lexer("LIST xs: Integer = [1, 2, 3, 4, 5, 6, 7, 8]; LIST out: Integer = [1, 1, 1, 1, 1, 1, 1, 1];" + loops).lex()).parseSource();
+        List<Ast.Statement> statements = ast.getFunctions().get(1).getStatements();
+        Effects effects = new Effects(ast);
+        Assertions.assertEquals(Collections.singleton("out"), effects.loop((Ast.Statement.While) statements.get(2)).getWritten());
+        Assertions.assertNull(effects.loop((Ast.Statement.While) statements.get(4)));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Interpreter interpreter = new Interpreter(new Scope(null));
+            interpreter.setParallelLoops(pool, 2);
+            Assertions.assertEquals(BigInteger.valueOf(21), interpreter.visit(ast).getValue());
+            Assertions.assertEquals(Arrays.asList(2L, 5L, 10L, 17L, 26L, 37L, 50L, 65L), ((List<?>) interpreter.getScope()
+                    .lookupVariable("out").getValue().getValue()).stream().map(value -> ((BigInteger) value).longValue()).collect(Collectors.toList()));
+
+            // storing past the end fails at the same iteration, after the same stores, as a sequential run
+            Ast.Source failing = new Parser(new Lexer("LIST xs: Integer = [1, 2, 3, 4, 5, 6, 7, 8]; LIST out: Integer = [1, 1, 1, 1, 1, 1];" + loops).lex()).parseSource();
+            Interpreter sequential = new Interpreter(new Scope(null));
+            RuntimeException expected = Assertions.assertThrows(RuntimeException.class, () -> sequential.visit(failing));
+            Interpreter parallel = new Interpreter(new Scope(null));
+            parallel.setParallelLoops(pool, 2);
+            RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> parallel.visit(failing));
+            Assertions.assertEquals(expected.getMessage(), exception.getMessage());
+            Assertions.assertEquals(sequential.getScope().lookupVariable("out").getValue().getValue(),
+                    parallel.getScope().lookupVariable("out").getValue().getValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testListBuiltins() {
+        Ast.Source ast = new Parser(new Lexer("LIST xs: Integer = [5, 3, 9, 1];" +
+                "FUN main() DO LET ys = copy(xs); sort(ys); fill(xs, 7);" +
+                "RETURN sum(ys) * 1000 + indexOf(ys, 9) * 100 + min(ys) * 10 + max(xs); END").lex()).parseSource();
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        Assertions.assertEquals(BigInteger.valueOf(18317), interpreter.visit(ast).getValue());
+        Assertions.assertEquals(Arrays.asList(BigInteger.valueOf(7), BigInteger.valueOf(7), BigInteger.valueOf(7), BigInteger.valueOf(7)),
+                interpreter.getScope().lookupVariable("xs").getValue().getValue());
+
+        // large lists run on the ForkJoin pool
+        int size = 4 * Lists.PARALLEL_THRESHOLD;
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            values.add(BigInteger.valueOf(size - 1 - i));
+        }
+        Environment.PlcObject list = Environment.create(TypedList.of(values));
+        Scope scope = interpreter.getScope();
+        Assertions.assertEquals(BigInteger.valueOf((long) size * (size - 1) / 2), scope.lookupFunction("sum", 1).invoke(Arrays.asList(list)).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(size - 1), scope.lookupFunction("indexOf", 2).invoke(Arrays.asList(list, Environment.integer(0))).getValue());
+        scope.lookupFunction("sort", 1).invoke(Arrays.asList(list));
+        Assertions.assertEquals(BigInteger.ZERO, scope.lookupFunction("indexOf", 2).invoke(Arrays.asList(list, Environment.integer(0))).getValue());
+        Assertions.assertEquals(BigInteger.valueOf(size - 1), scope.lookupFunction("max", 1).invoke(Arrays.asList(list)).getValue());
+        Assertions.assertEquals(Environment.Type.INTEGER, ((TypedList) list.getValue()).getElementType());
+
+        // functions of the embedder take precedence over the builtins
+        Scope parent = new Scope(null);
+        parent.defineFunction("max", 1, args -> Environment.create("embedder"));
+        Assertions.assertEquals("embedder", new Interpreter(parent).visit(
+                new Ast.Expression.Function("max", Arrays.asList(new Ast.Expression.Literal(BigInteger.ONE)))).getValue());
+    }
+
     @Test
     void testExpressionStatement() {
         // print("Hello, World!");
@@ -126,6 +827,31 @@ final class InterpreterTests {
         }
     }
 
+    @Test
+    void testOutput() {
+        // FUN main() DO print("Hello"); print(1); END
+        Ast.Source ast = new Ast.Source(Arrays.asList(), Arrays.asList(new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("Hello")))),
+                new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal(BigInteger.ONE))))
+        ))));
+        PlcOutput.Capture capture = PlcOutput.capture();
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setOutput(capture);
+        interpreter.visit(ast);
+        Assertions.assertEquals("Hello" + System.lineSeparator() + "1" + System.lineSeparator(), capture.getText());
+
+        // buffered output is only written once flushed, which running a source does at the end
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PlcOutput.Buffered buffered = PlcOutput.buffered(out, 1 << 16);
+        buffered.println("line");
+        Assertions.assertEquals("", out.toString());
+        interpreter = new Interpreter(new Scope(null));
+        interpreter.setOutput(buffered);
+        interpreter.visit(ast);
+        Assertions.assertEquals("line" + System.lineSeparator() + capture.getText(), out.toString());
+        buffered.close();
+    }
+
     @ParameterizedTest
     @MethodSource
     void testDeclarationStatement(String test, Ast.Statement.Declaration ast, Object expected) {
@@ -240,6 +966,50 @@ final class InterpreterTests {
         Assertions.assertEquals(new Character('n'), scope.lookupVariable("letter").getValue().getValue());
     }
 
+    @Test
+    void testSwitchTable() {
+        // SWITCH number CASE 0: result = 0; ... CASE 199: result = 199; DEFAULT: result = -1; END
+        List<Ast.Statement.Case> cases = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            cases.add(new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(i))), Arrays.asList(
+                    new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "result"), new Ast.Expression.Literal(BigInteger.valueOf(i)))
+            )));
+        }
+        cases.add(new Ast.Statement.Case(Optional.empty(), Arrays.asList(
+                new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "result"), new Ast.Expression.Literal(BigInteger.valueOf(-1)))
+        )));
+        Ast.Statement.Switch ast = new Ast.Statement.Switch(new Ast.Expression.Access(Optional.empty(), "number"), cases);
+        Scope scope = new Scope(null);
+        scope.defineVariable("number", true, Environment.create(BigInteger.valueOf(150)));
+        scope.defineVariable("result", true, Environment.NIL);
+        Interpreter interpreter = new Interpreter(scope);
+        interpreter.visit(ast);
+        Assertions.assertEquals(BigInteger.valueOf(150), scope.lookupVariable("result").getValue().getValue());
+        Assertions.assertNotNull(ast.getCaseTable());
+        scope.lookupVariable("number").setValue(Environment.create("150"));
+        interpreter.visit(ast);
+        Assertions.assertEquals(BigInteger.valueOf(-1), scope.lookupVariable("result").getValue().getValue());
+
+        Environment.CaseTable strings = Environment.CaseTable.of(Arrays.asList(
+                new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal("a")), Arrays.asList()),
+                new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal("b")), Arrays.asList())
+        ));
+        Assertions.assertEquals(1, strings.lookup("b"));
+        Assertions.assertEquals(-1, strings.lookup("c"));
+
+        // SWITCH NIL CASE NIL: result = 1; DEFAULT: result = 2; END
+        Ast.Statement.Switch nil = new Ast.Statement.Switch(new Ast.Expression.Literal(null), Arrays.asList(
+                new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal(null)), Arrays.asList(
+                        new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "result"), new Ast.Expression.Literal(BigInteger.ONE))
+                )),
+                new Ast.Statement.Case(Optional.empty(), Arrays.asList(
+                        new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(), "result"), new Ast.Expression.Literal(BigInteger.valueOf(2)))
+                ))
+        ));
+        interpreter.visit(nil);
+        Assertions.assertEquals(BigInteger.ONE, scope.lookupVariable("result").getValue().getValue());
+    }
+
     @ParameterizedTest
     @MethodSource
     void testSubtraction(String name, Ast.Expression.Binary expression, Object expected) {
@@ -297,6 +1067,44 @@ final class InterpreterTests {
         Assertions.assertEquals(BigInteger.TEN, scope.lookupVariable("num").getValue().getValue());
     }
 
+    @Test
+    void testWhileDeclarations() {
+        // WHILE num < 10 DO LET next = num + 1; num = next; END
+        Ast.Statement.While ast = new Ast.Statement.While(
+                new Ast.Expression.Binary("<",
+                        new Ast.Expression.Access(Optional.empty(),"num"),
+                        new Ast.Expression.Literal(BigInteger.TEN)
+                ),
+                Arrays.asList(
+                        new Ast.Statement.Declaration("next", Optional.of(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(),"num"),
+                                new Ast.Expression.Literal(BigInteger.ONE)
+                        ))),
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(),"num"),
+                                new Ast.Expression.Access(Optional.empty(),"next")
+                        )
+                )
+        );
+        Scope scope = new Scope(null);
+        scope.defineVariable("num", true, Environment.create(BigInteger.ZERO));
+        Interpreter interpreter = new Interpreter(scope);
+        interpreter.visit(ast);
+        Assertions.assertEquals(BigInteger.TEN, scope.lookupVariable("num").getValue().getValue());
+        Assertions.assertThrows(RuntimeException.class, () -> interpreter.getScope().lookupVariable("next"));
+
+        // FUN count() DO LET num = 0; WHILE num < 10 DO LET next = num + 1; num = next; END RETURN num; END
+        Ast.Function function = new Ast.Function("count", Arrays.asList(), Arrays.asList(
+                new Ast.Statement.Declaration("num", Optional.of(new Ast.Expression.Literal(BigInteger.ZERO))),
+                ast,
+                new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "num"))
+        ));
+        Interpreter stackless = new Interpreter(new Scope(null));
+        stackless.setStackless(100);
+        stackless.visit(function);
+        Assertions.assertEquals(BigInteger.TEN, stackless.getScope().lookupFunction("count", 0).invoke0().getValue());
+    }
+
     @ParameterizedTest
     @MethodSource
     void testLiteralExpression(String test, Ast ast, Object expected) {
@@ -389,6 +1197,14 @@ final class InterpreterTests {
                         ),
                         "ab"
                 ),
+                // "a" + 1
+                Arguments.of("Concatenation (Integer)",
+                        new Ast.Expression.Binary("+",
+                                new Ast.Expression.Literal("a"),
+                                new Ast.Expression.Literal(BigInteger.ONE)
+                        ),
+                        "a1"
+                ),
                 // 1 + 10
                 Arguments.of("Addition",
                         new Ast.Expression.Binary("+",
@@ -444,6 +1260,77 @@ final class InterpreterTests {
         test(new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(1))), "list"), BigInteger.valueOf(5), scope);
     }
 
+    @Test
+    void testTypedList() {
+        // LIST list = [1, 5, 10]; list[1] = 2^70;
+        Scope scope = new Scope(null);
+        Interpreter interpreter = new Interpreter(scope);
+        interpreter.visit(new Ast.Global("list", true, Optional.of(new Ast.Expression.PlcList(Arrays.asList(
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.valueOf(5)),
+                new Ast.Expression.Literal(BigInteger.TEN)
+        )))));
+        TypedList list = (TypedList) interpreter.getScope().lookupVariable("list").getValue().getValue();
+        Assertions.assertEquals(Environment.Type.INTEGER, list.getElementType());
+        Assertions.assertEquals(Arrays.asList(BigInteger.ONE, BigInteger.valueOf(5), BigInteger.TEN), list);
+        Assertions.assertSame(Environment.create(BigInteger.valueOf(5)), list.load(1));
+        interpreter.visit(new Ast.Statement.Assignment(
+                new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.ONE)), "list"),
+                new Ast.Expression.Literal(BigInteger.valueOf(2).pow(70))
+        ));
+        Assertions.assertEquals(Environment.Type.ANY, list.getElementType());
+        Assertions.assertEquals(Arrays.asList(BigInteger.ONE, BigInteger.valueOf(2).pow(70), BigInteger.TEN), list);
+
+        // decimals are only stored as doubles when they round-trip exactly, including the scale
+        Assertions.assertEquals(Environment.Type.DECIMAL, TypedList.of(Arrays.asList(new BigDecimal("0.1"), new BigDecimal("2.5"))).getElementType());
+        Assertions.assertEquals(Environment.Type.ANY, TypedList.of(Arrays.asList(new BigDecimal("0.10"))).getElementType());
+        Assertions.assertEquals(Arrays.asList('a', 'b'), TypedList.of(Arrays.asList('a', 'b')));
+        Assertions.assertEquals(Environment.Type.BOOLEAN, TypedList.of(Arrays.asList(true, false)).getElementType());
+    }
+
+    @Test
+    void testMappedList() throws IOException {
+        // table = mapList(path, "Integer", 1000); table[999] = 2^40; flush(table);
+        Path path = Files.createTempFile("table", ".bin");
+        try {
+            Scope scope = new Scope(null);
+            scope.defineVariable("path", true, Environment.create(path.getFileName().toString()));
+            Interpreter interpreter = new Interpreter(scope);
+            // scripts may only map files once the embedder opts in
+            Assertions.assertThrows(RuntimeException.class, () -> interpreter.getScope().lookupFunction("mapList", 3));
+            interpreter.setMappedRoot(path.getParent());
+            RuntimeException exception = Assertions.assertThrows(RuntimeException.class, () -> interpreter.visit(
+                    new Ast.Expression.Function("mapList", Arrays.asList(
+                            new Ast.Expression.Literal("../" + path.getFileName()),
+                            new Ast.Expression.Literal("Integer"),
+                            new Ast.Expression.Literal(BigInteger.ONE)
+                    ))));
+            Assertions.assertEquals("The path ../" + path.getFileName() + " is outside the mapped root.", exception.getMessage());
+            scope.defineVariable("table", true, interpreter.visit(new Ast.Expression.Function("mapList", Arrays.asList(
+                    new Ast.Expression.Access(Optional.empty(), "path"),
+                    new Ast.Expression.Literal("Integer"),
+                    new Ast.Expression.Literal(BigInteger.valueOf(1000))
+            ))));
+            interpreter.visit(new Ast.Statement.Assignment(
+                    new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(999))), "table"),
+                    new Ast.Expression.Literal(BigInteger.valueOf(2).pow(40))
+            ));
+            interpreter.visit(new Ast.Expression.Function("flush", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "table"))));
+            Assertions.assertEquals(8000, Files.size(path));
+
+            MappedList table = MappedList.map(path, Environment.Type.INTEGER, 1000);
+            Assertions.assertEquals(BigInteger.valueOf(2).pow(40), table.get(999));
+            Assertions.assertSame(Environment.create(BigInteger.ZERO), table.load(0));
+            Assertions.assertThrows(RuntimeException.class, () -> table.store(0, BigInteger.valueOf(2).pow(70)));
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> table.get(1000));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+        MappedList flags = MappedList.allocate(Environment.Type.BOOLEAN, 3);
+        flags.set(1, true);
+        Assertions.assertEquals(Arrays.asList(false, true, false), flags);
+    }
+
     @ParameterizedTest
     @MethodSource
     void testFunctionExpression(String test, Ast ast, Object expected) {